@@ -3,9 +3,14 @@ package controllers.modules.search;
 import java.util.List;
 
 import play.Play;
+import play.jobs.Job;
 import play.libs.Codec;
+import play.modules.search.FilterCache;
+import play.modules.search.QueryCache;
+import play.modules.search.ResultCache;
 import play.modules.search.Search;
 import play.modules.search.store.ManagedIndex;
+import play.modules.search.store.SortCache;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.With;
@@ -29,7 +34,11 @@ public class Administration extends Controller {
     
     public static void index () {
         List<ManagedIndex> indexes = Search.getCurrentStore().listIndexes();
-        render(indexes);
+        QueryCache queryCache = Search.getQueryCache();
+        FilterCache filterCache = Search.getFilterCache();
+        ResultCache resultCache = Search.getResultCache();
+        List<SortCache.Stats> fieldCaches = SortCache.getStats();
+        render(indexes, queryCache, filterCache, resultCache, fieldCaches);
     }
     
     public static void optimize (String name) {
@@ -37,8 +46,30 @@ public class Administration extends Controller {
         index();
     }
     
-    public static void reindex(String name) {
-        Search.getCurrentStore().rebuild(name);
+    /**
+     * Starts the rebuild in the background, the index keeps serving queries
+     * meanwhile and its progress is shown by index()
+     */
+    public static void reindex(final String name) {
+        new Job<Void>() {
+            @Override
+            public void doJob() {
+                Search.getCurrentStore().rebuild(name);
+            }
+        }.now();
+        index();
+    }
+    
+    /**
+     * Reindexes in the background the objects changed since the last reindex
+     */
+    public static void incremental(final String name) {
+        new Job<Void>() {
+            @Override
+            public void doJob() {
+                Search.getCurrentStore().reindexChanged(name);
+            }
+        }.now();
         index();
     }
     
@@ -0,0 +1,32 @@
+package modules.search;
+
+import java.util.List;
+
+import play.Logger;
+import play.Play;
+import play.classloading.ApplicationClasses.ApplicationClass;
+import play.jobs.Job;
+import play.modules.search.Indexed;
+import play.modules.search.Search;
+
+/**
+ * Reindexes the objects changed since the last reindex, for every class with
+ * an @Indexed(versionField). Scheduled by SearchReindexJob when
+ * play.search.incremental.every is set.
+ */
+public class SearchIncrementalReindexJob extends Job<Void> {
+
+    public void doJob() throws Exception {
+        List<ApplicationClass> classes = Play.classes.getAnnotatedClasses(Indexed.class);
+        for (ApplicationClass applicationClass : classes) {
+            Indexed indexed = applicationClass.javaClass.getAnnotation(Indexed.class);
+            if (indexed.versionField().length() == 0)
+                continue;
+            try {
+                Search.getCurrentStore().reindexChanged(applicationClass.javaClass.getName());
+            } catch (Exception e) {
+                Logger.error(e, "Could not reindex the changes of %s", applicationClass.javaClass.getName());
+            }
+        }
+    }
+}
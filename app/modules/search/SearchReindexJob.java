@@ -17,6 +17,9 @@ public class SearchReindexJob extends Job<Void> {
                 throw new RuntimeException(e);
             }
         }
+        String every = Play.configuration.getProperty("play.search.incremental.every");
+        if (every != null && every.trim().length() > 0)
+            new SearchIncrementalReindexJob().every(every.trim());
     }
 
 }
@@ -0,0 +1,10 @@
+package controllers;
+
+import play.mvc.Controller;
+
+public class Application extends Controller {
+
+    public static void index() {
+        renderText("Test application of the search module, run it with play auto-test");
+    }
+}
@@ -0,0 +1,65 @@
+package models;
+
+import javax.persistence.Entity;
+
+import play.db.jpa.Model;
+import play.modules.search.Field;
+import play.modules.search.Indexed;
+
+/**
+ * A sortable field of each type, to test the orders of the queries
+ */
+@Entity
+@Indexed
+public class Item extends Model {
+    @Field(sortable = true, tokenize = false)
+    public String name;
+
+    @Field(sortable = true)
+    public int quantity;
+
+    @Field(sortable = true)
+    public long stock;
+
+    @Field(sortable = true)
+    public float weight;
+
+    @Field(sortable = true)
+    public double price;
+
+    @Field(sortable = true)
+    public short rank;
+
+    @Field(sortable = true)
+    public byte grade;
+
+    @Field
+    public String description;
+
+    public Item() {
+    }
+
+    public Item(long id) {
+        this.id = id;
+        name = "item " + (char) ('a' + id % 17);
+        quantity = (int) (id % 13);
+        stock = id % 11 * 1000000000L;
+        weight = id % 7 / 2f;
+        price = id % 19 / 4d;
+        rank = (short) (id % 5 * 300);
+        grade = (byte) (id % 3);
+        description = "item number " + id;
+    }
+
+    /**
+     * @return the value of a field, to compare as the index sorts it
+     */
+    @SuppressWarnings("unchecked")
+    public Comparable<Object> valueOf(String field) {
+        try {
+            return (Comparable<Object>) getClass().getField(field).get(this);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+import models.Item;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+import play.modules.search.Query;
+import play.modules.search.Search;
+import play.test.UnitTest;
+
+/**
+ * Pages with after() and cursor() through the order of every sortable field
+ * type, forward and reversed, and checks that each hit comes exactly once and
+ * in the order of the field, then of the id.
+ */
+public class CursorTest extends UnitTest {
+    static final String[] FIELDS = { "name", "quantity", "stock", "weight", "price", "rank", "grade" };
+
+    static final int ITEMS = 200;
+
+    static final int PAGE = 37;
+
+    private Properties configuration;
+
+    @Before
+    public void saveConfiguration() {
+        configuration = (Properties) Play.configuration.clone();
+    }
+
+    @After
+    public void restoreConfiguration() {
+        Search.getCurrentStore().delete(Item.class.getName());
+        Play.configuration = configuration;
+        Search.init();
+    }
+
+    @Test
+    public void textEncodedFields() throws Exception {
+        // sorts on SHORT and BYTE, besides INT, LONG, FLOAT, DOUBLE and STRING
+        pageEveryOrder("false", "1");
+    }
+
+    @Test
+    public void numericFields() throws Exception {
+        pageEveryOrder("true", "1");
+    }
+
+    @Test
+    public void shardedIndex() throws Exception {
+        pageEveryOrder("false", "3");
+        pageEveryOrder("true", "3");
+    }
+
+    @Test
+    public void nearRealTime() throws Exception {
+        Play.configuration.setProperty("play.search.nrt", "true");
+        pageEveryOrder("true", "1");
+    }
+
+    private void pageEveryOrder(String numeric, String shards) throws Exception {
+        index(numeric, shards);
+        for (String field : FIELDS) {
+            assertOrder(field, false, page(Search.search("*:*", Item.class).orderBy(field)));
+            assertOrder(field, true, page(Search.search("*:*", Item.class).orderBy(field).reverse()));
+        }
+        // by relevance, all the scores are equal
+        assertOrder(null, false, page(Search.search("*:*", Item.class)));
+    }
+
+    /**
+     * Indexes the items in a new index
+     */
+    static void index(String numeric, String shards) {
+        Play.configuration.setProperty("play.search.numeric", numeric);
+        Play.configuration.setProperty("play.search.shards." + Item.class.getName(), shards);
+        Search.init();
+        Search.getCurrentStore().delete(Item.class.getName());
+        for (long id = 1; id <= ITEMS; id++) {
+            Search.index(new Item(id));
+        }
+        Search.getCurrentStore().optimize(Item.class.getName());
+    }
+
+    private static List<Long> page(Query query) {
+        List<Long> ids = new ArrayList<Long>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            query.page(0, PAGE).after(cursor);
+            List<Long> page = query.fetchIds();
+            assertTrue("page larger than its size", page.size() <= PAGE);
+            ids.addAll(page);
+            cursor = query.cursor();
+            assertTrue("more pages than hits", ++pages <= ITEMS / PAGE + 2);
+        } while (cursor != null);
+        return ids;
+    }
+
+    /**
+     * Checks that ids holds every item, ordered by field (null for none),
+     * reversed or not, then by the index text of the id
+     */
+    static void assertOrder(final String field, final boolean reverse, List<Long> ids) {
+        List<Item> items = new ArrayList<Item>();
+        for (long id = 1; id <= ITEMS; id++) {
+            items.add(new Item(id));
+        }
+        Collections.sort(items, new Comparator<Item>() {
+            public int compare(Item a, Item b) {
+                int c = field == null ? 0 : a.valueOf(field).compareTo(b.valueOf(field));
+                if (reverse)
+                    c = -c;
+                return c != 0 ? c : String.valueOf(a.id).compareTo(String.valueOf(b.id));
+            }
+        });
+        List<Long> expected = new ArrayList<Long>();
+        for (Item item : items) {
+            expected.add(item.id);
+        }
+        assertEquals("order by " + field + (reverse ? " reversed" : ""), expected, ids);
+    }
+}
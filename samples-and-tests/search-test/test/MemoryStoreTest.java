@@ -0,0 +1,119 @@
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Searcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+import play.modules.search.store.FilesystemStore;
+import play.modules.search.store.Fingerprints;
+import play.modules.search.store.IndexOperation;
+import play.modules.search.store.MemoryStore;
+import play.test.UnitTest;
+
+/**
+ * Checks that the in-memory store only touches its snapshot on stop, and
+ * loads it back on start.
+ */
+public class MemoryStoreTest extends UnitTest {
+    private static final String INDEX = "memory.Snapshot";
+
+    private Properties configuration;
+
+    private MemoryStore store;
+
+    @Before
+    public void start() {
+        configuration = (Properties) Play.configuration.clone();
+        Play.configuration.setProperty("play.search.memory.snapshot", "true");
+        store = new MemoryStore();
+        store.start();
+    }
+
+    @After
+    public void stop() throws Exception {
+        store.stop();
+        Play.configuration = configuration;
+        play.libs.Files.deleteDirectory(snapshot());
+    }
+
+    @Test
+    public void snapshotSavedOnStop() throws Exception {
+        write("1");
+        assertFalse("snapshot written before stop", snapshot().exists());
+        restart();
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void deletedIndexNotLoadedAgain() throws Exception {
+        write("1");
+        restart();
+        store.delete(INDEX);
+        assertTrue("snapshot deleted before stop", snapshot().exists());
+        restart();
+        assertFalse("snapshot of a deleted index kept", snapshot().exists());
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void deletedIndexEmpty() throws Exception {
+        write("1");
+        restart();
+        store.delete(INDEX);
+        assertEquals("snapshot loaded again", 0, count());
+    }
+
+    @Test
+    public void deletedIndexWrittenAgain() throws Exception {
+        write("1");
+        restart();
+        store.delete(INDEX);
+        write("2");
+        restart();
+        assertEquals(1, count());
+    }
+
+    @Test
+    public void deleteAllKeepsSnapshotsUntilStop() throws Exception {
+        write("1");
+        restart();
+        store.deleteAll();
+        assertTrue("snapshot deleted before stop", snapshot().exists());
+        restart();
+        assertFalse("snapshot of a deleted index kept", snapshot().exists());
+    }
+
+    private void restart() throws Exception {
+        store.stop();
+        store = new MemoryStore();
+        store.start();
+    }
+
+    private static File snapshot() {
+        return new File(FilesystemStore.DATA_PATH, INDEX);
+    }
+
+    private void write(String id) {
+        Document document = new Document();
+        document.add(new Field("_docID", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        document.add(new Field("title", "memory " + id, Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field(Fingerprints.FIELD, Fingerprints.of(document), Field.Store.YES, Field.Index.NO));
+        store.apply(INDEX, Collections.singletonList(new IndexOperation(INDEX, id, document)));
+    }
+
+    private int count() throws Exception {
+        Searcher searcher = store.acquireSearcher(INDEX);
+        try {
+            return searcher.search(new MatchAllDocsQuery(), 1).totalHits;
+        } finally {
+            store.releaseSearcher(INDEX, searcher);
+        }
+    }
+}
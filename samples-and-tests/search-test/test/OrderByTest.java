@@ -0,0 +1,50 @@
+import java.util.List;
+import java.util.Properties;
+
+import models.Item;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+import play.modules.search.Query.SearchException;
+import play.modules.search.Search;
+import play.test.UnitTest;
+
+/**
+ * Checks which fields can be sorted on.
+ */
+public class OrderByTest extends UnitTest {
+    private Properties configuration;
+
+    @Before
+    public void index() {
+        configuration = (Properties) Play.configuration.clone();
+        CursorTest.index("false", "1");
+    }
+
+    @After
+    public void restoreConfiguration() {
+        Search.getCurrentStore().delete(Item.class.getName());
+        Play.configuration = configuration;
+        Search.init();
+    }
+
+    @Test
+    public void tokenizedFieldNotSortable() {
+        try {
+            Search.search("*:*", Item.class).orderBy("description").fetchIds();
+            fail("sorted on a tokenized field not declared sortable");
+        } catch (SearchException e) {
+        }
+    }
+
+    @Test
+    public void sortableFields() {
+        for (String field : CursorTest.FIELDS) {
+            List<Long> ids = Search.search("*:*", Item.class).orderBy(field).page(0, CursorTest.ITEMS).fetchIds();
+            assertEquals(field, CursorTest.ITEMS, ids.size());
+        }
+    }
+}
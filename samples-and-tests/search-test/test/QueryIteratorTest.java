@@ -0,0 +1,88 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+import models.Item;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+import play.modules.search.Query;
+import play.modules.search.Search;
+import play.test.UnitTest;
+
+/**
+ * Iterates over the ids of all the hits in the order of every sortable field
+ * type, by batches smaller than the index.
+ */
+public class QueryIteratorTest extends UnitTest {
+    private Properties configuration;
+
+    @Before
+    public void saveConfiguration() {
+        configuration = (Properties) Play.configuration.clone();
+        Play.configuration.setProperty("play.search.fetch.batchSize", "37");
+    }
+
+    @After
+    public void restoreConfiguration() {
+        Search.getCurrentStore().delete(Item.class.getName());
+        Play.configuration = configuration;
+        Search.init();
+    }
+
+    @Test
+    public void textEncodedFields() throws Exception {
+        iterateEveryOrder("false", "1");
+    }
+
+    @Test
+    public void numericFields() throws Exception {
+        iterateEveryOrder("true", "1");
+    }
+
+    @Test
+    public void shardedIndex() throws Exception {
+        iterateEveryOrder("true", "3");
+    }
+
+    @Test
+    public void endOfIteration() throws Exception {
+        CursorTest.index("true", "1");
+        Iterator<Long> ids = Search.search("quantity:[0 TO 0]", Item.class).orderBy("quantity").iterateIds().iterator();
+        int count = 0;
+        while (ids.hasNext()) {
+            ids.next();
+            count++;
+        }
+        assertTrue(count > 0);
+        assertEquals(Search.search("quantity:[0 TO 0]", Item.class).count(), count);
+        assertFalse(ids.hasNext());
+        try {
+            ids.next();
+            fail("next() after the last hit");
+        } catch (NoSuchElementException e) {
+        }
+    }
+
+    private void iterateEveryOrder(String numeric, String shards) throws Exception {
+        CursorTest.index(numeric, shards);
+        for (String field : CursorTest.FIELDS) {
+            CursorTest.assertOrder(field, false, ids(Search.search("*:*", Item.class).orderBy(field)));
+            CursorTest.assertOrder(field, true, ids(Search.search("*:*", Item.class).orderBy(field).reverse()));
+        }
+        CursorTest.assertOrder(null, false, ids(Search.search("*:*", Item.class)));
+    }
+
+    private static List<Long> ids(Query query) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Long id : query.iterateIds()) {
+            ids.add(id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import models.Item;
+
+import org.apache.lucene.search.Searcher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+import play.modules.search.Search;
+import play.modules.search.store.Store;
+import play.test.UnitTest;
+
+/**
+ * Pages through a sharded index by offset, where the shards are searched in
+ * parallel and their hits merged, and checks that the searcher over the
+ * shards is shared until one of them reopens.
+ */
+public class ShardedSearchTest extends UnitTest {
+    private Properties configuration;
+
+    @Before
+    public void saveConfiguration() {
+        configuration = (Properties) Play.configuration.clone();
+    }
+
+    @After
+    public void restoreConfiguration() {
+        Search.getCurrentStore().delete(Item.class.getName());
+        Play.configuration = configuration;
+        Search.init();
+    }
+
+    @Test
+    public void textEncodedFields() throws Exception {
+        pageEveryOrder("false");
+    }
+
+    @Test
+    public void numericFields() throws Exception {
+        pageEveryOrder("true");
+    }
+
+    @Test
+    public void searcherSharedUntilReopen() throws Exception {
+        CursorTest.index("false", "3");
+        Store store = Search.getCurrentStore();
+        String name = Item.class.getName();
+        Searcher first = store.acquireSearcher(name);
+        Searcher second = store.acquireSearcher(name);
+        try {
+            assertSame(first, second);
+        } finally {
+            store.releaseSearcher(name, first);
+            store.releaseSearcher(name, second);
+        }
+        Search.index(new Item(CursorTest.ITEMS + 1));
+        store.reopen(name);
+        Searcher reopened = store.acquireSearcher(name);
+        try {
+            assertNotSame(first, reopened);
+            assertEquals(CursorTest.ITEMS + 1, reopened.maxDoc());
+        } finally {
+            store.releaseSearcher(name, reopened);
+        }
+    }
+
+    private void pageEveryOrder(String numeric) throws Exception {
+        CursorTest.index(numeric, "3");
+        for (String field : CursorTest.FIELDS) {
+            assertOrder(field, false);
+            assertOrder(field, true);
+        }
+    }
+
+    /**
+     * Pages by offset and checks that every item comes once, ordered by
+     * field. Hits with equal values are ordered by document, which depends
+     * on the shards, so only the values are compared.
+     */
+    private static void assertOrder(String field, boolean reverse) {
+        List<Long> ids = new ArrayList<Long>();
+        for (int offset = 0; offset < CursorTest.ITEMS; offset += CursorTest.PAGE) {
+            List<Long> page = (reverse ? Search.search("*:*", Item.class).orderBy(field).reverse() : Search.search("*:*", Item.class).orderBy(field)).page(offset, CursorTest.PAGE).fetchIds();
+            assertEquals(Math.min(CursorTest.PAGE, CursorTest.ITEMS - offset), page.size());
+            ids.addAll(page);
+        }
+        List<Comparable> values = new ArrayList<Comparable>();
+        List<Long> sorted = new ArrayList<Long>(ids);
+        Collections.sort(sorted);
+        for (long id = 1; id <= CursorTest.ITEMS; id++) {
+            assertEquals("every item once", Long.valueOf(id), sorted.get((int) id - 1));
+        }
+        for (Long id : ids) {
+            values.add(new Item(id).valueOf(field));
+        }
+        List<Comparable> expected = new ArrayList<Comparable>(values);
+        Collections.sort(expected);
+        if (reverse)
+            Collections.reverse(expected);
+        assertEquals("order by " + field + (reverse ? " reversed" : ""), expected, values);
+    }
+}
@@ -0,0 +1,580 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import models.Item;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Play;
+import play.modules.search.Search;
+import play.modules.search.store.FilesystemStore;
+import play.modules.search.store.Fingerprints;
+import play.modules.search.store.IndexOperation;
+import play.modules.search.store.RebuildProgress;
+import play.modules.search.store.Store;
+import play.test.UnitTest;
+
+/**
+ * Runs concurrent writers, readers and reopens/optimizes on several indexes,
+ * one of them sharded, then checks that no searcher was used once closed,
+ * that nothing failed and that every index holds exactly the last write of
+ * each document.
+ */
+public class StoreStressTest extends UnitTest {
+    private static final String[] INDEXES = { "stress.First", "stress.Second", "stress.Sharded" };
+
+    private static final int WRITERS = 4;
+
+    private static final int READERS = 8;
+
+    private static final int IDS = 150;
+
+    private static final int ROUNDS = 3;
+
+    private Properties configuration;
+
+    @Before
+    public void saveConfiguration() {
+        configuration = (Properties) Play.configuration.clone();
+    }
+
+    @After
+    public void restoreConfiguration() {
+        for (String index : INDEXES) {
+            Search.getCurrentStore().delete(index);
+        }
+        Play.configuration = configuration;
+        Search.init();
+    }
+
+    @Test
+    public void synchronousWrites() throws Exception {
+        stress(false, true);
+    }
+
+    @Test
+    public void asynchronousWrites() throws Exception {
+        stress(false, false);
+    }
+
+    @Test
+    public void nearRealTime() throws Exception {
+        stress(true, true);
+    }
+
+    @Test
+    public void nearRealTimeAsynchronousWrites() throws Exception {
+        stress(true, false);
+    }
+
+    @Test
+    public void sameIdWrites() throws Exception {
+        sameIds(false, true);
+        sameIds(false, false);
+    }
+
+    @Test
+    public void nearRealTimeSameIdWrites() throws Exception {
+        sameIds(true, true);
+        sameIds(true, false);
+    }
+
+    @Test
+    public void rebuildDoesNotBlockOtherIndexes() throws Exception {
+        Search.init();
+        final RebuildingStore store = new RebuildingStore();
+        store.start();
+        final String rebuilt = Item.class.getName();
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        Thread rebuild = new Thread("stress-rebuild") {
+            @Override
+            public void run() {
+                try {
+                    store.rebuild(rebuilt);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        };
+        try {
+            store.delete(rebuilt);
+            for (String index : INDEXES) {
+                store.delete(index);
+            }
+            store.apply(rebuilt, Collections.singletonList(operation(rebuilt, "1", "before")));
+            rebuild.start();
+
+            // while the objects are read: another index is opened and
+            // used, the current index keeps serving the rebuilt one
+            assertTrue("rebuild started", store.indexing.await(10, TimeUnit.SECONDS));
+            assertCompletes(store, INDEXES[0], "during");
+            assertCompletes(store, rebuilt, "during");
+            store.indexed.countDown();
+
+            // while the rebuilt index is swapped, holding its locks: an open
+            // index and a new one are used
+            assertTrue("swap started", store.swapping.await(10, TimeUnit.SECONDS));
+            assertCompletes(store, INDEXES[0], "swap");
+            assertCompletes(store, INDEXES[1], "swap");
+            store.swapped.countDown();
+            rebuild.join();
+            assertEquals("failures, first one: " + failures.peek(), 0, failures.size());
+
+            // the writes made during the rebuild are in the rebuilt index
+            assertEquals("during", title(store, rebuilt, "1"));
+        } finally {
+            store.indexed.countDown();
+            store.swapped.countDown();
+            rebuild.join();
+            store.delete(rebuilt);
+            store.stop();
+        }
+    }
+
+    /**
+     * Writes, reads and reopens index on another thread, failing if that
+     * does not complete in time
+     */
+    private static void assertCompletes(final Store store, final String index, final String title) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> done = executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    store.apply(index, Collections.singletonList(operation(index, "1", title)));
+                    store.reopen(index);
+                    store.optimize(index);
+                    return title(store, index, "1");
+                }
+            });
+            assertEquals(title, done.get(10, TimeUnit.SECONDS));
+        } catch (TimeoutException e) {
+            fail("index " + index + " blocked");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String title(Store store, String index, String id) throws IOException {
+        Searcher searcher = store.acquireSearcher(index);
+        try {
+            TopDocs hits = searcher.search(new TermQuery(new Term("_docID", id)), 2);
+            assertEquals(index + " documents with id " + id, 1, hits.totalHits);
+            return searcher.doc(hits.scoreDocs[0].doc).get("title");
+        } finally {
+            store.releaseSearcher(index, searcher);
+        }
+    }
+
+    /**
+     * Rebuilds from no object, pausing while the objects are read and while
+     * the new index is swapped in
+     */
+    public static class RebuildingStore extends FilesystemStore {
+        final CountDownLatch indexing = new CountDownLatch(1);
+
+        final CountDownLatch indexed = new CountDownLatch(1);
+
+        final CountDownLatch swapping = new CountDownLatch(1);
+
+        final CountDownLatch swapped = new CountDownLatch(1);
+
+        @Override
+        protected long countObjects(Class<?> cl) {
+            return 0;
+        }
+
+        @Override
+        protected String getMaxVersion(Class<?> cl) {
+            return null;
+        }
+
+        @Override
+        protected void indexObjects(Class<?> cl, OnlineRebuild[] rebuild, RebuildProgress progress) throws Exception {
+            indexing.countDown();
+            indexed.await();
+        }
+
+        @Override
+        protected void setIndexFolder(String name, File folder) throws IOException {
+            // called by swap, holding the index locks
+            swapping.countDown();
+            try {
+                swapped.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+            super.setIndexFolder(name, folder);
+        }
+    }
+
+    @Test
+    public void deleteWithUncommittedWrites() throws Exception {
+        Play.configuration.setProperty("play.search.nrt", "true");
+        Play.configuration.setProperty("play.search.nrt.commitInterval", "0");
+        Search.init();
+        FilesystemStore store = (FilesystemStore) Search.getCurrentStore();
+        String index = INDEXES[0];
+        store.apply(index, Collections.singletonList(operation(index, "1", "A")));
+        store.delete(index);
+        assertFalse("index not deleted", new File(FilesystemStore.DATA_PATH, index).exists());
+        // the next committer tick
+        store.commitPending();
+        assertFalse("deleted index opened again", new File(FilesystemStore.DATA_PATH, index).exists());
+    }
+
+    @Test
+    public void reopenDuringWrite() throws Exception {
+        reopenDuringWrite(false);
+        reopenDuringWrite(true);
+    }
+
+    /**
+     * Writes a document back to the value of the searcher acquired by the
+     * write, while a reopen makes visible the value written in between.
+     */
+    private void reopenDuringWrite(boolean nrt) throws Exception {
+        Play.configuration.setProperty("play.search.nrt", String.valueOf(nrt));
+        Play.configuration.setProperty("play.search.synch", "false");
+        ReopeningStore store = new ReopeningStore();
+        store.start();
+        String index = "stress.Reopened";
+        try {
+            store.delete(index);
+            store.apply(index, Collections.singletonList(operation(index, "1", "A")));
+            store.optimize(index);
+            store.apply(index, Collections.singletonList(operation(index, "1", "B")));
+            store.reopenOnAcquire = index;
+            store.apply(index, Collections.singletonList(operation(index, "1", "A")));
+            assertNull("no reopen during the write", store.reopenOnAcquire);
+            store.optimize(index);
+            Searcher searcher = store.acquireSearcher(index);
+            try {
+                TopDocs hits = searcher.search(new TermQuery(new Term("_docID", "1")), 2);
+                assertEquals(1, hits.totalHits);
+                assertEquals("title" + (nrt ? ", nrt" : ""), "A", searcher.doc(hits.scoreDocs[0].doc).get("title"));
+            } finally {
+                store.releaseSearcher(index, searcher);
+            }
+        } finally {
+            store.delete(index);
+            store.stop();
+        }
+    }
+
+    /**
+     * Commits and reopens an index right after a searcher of it is acquired
+     */
+    public static class ReopeningStore extends FilesystemStore {
+        volatile String reopenOnAcquire;
+
+        @Override
+        public IndexSearcher acquireIndexSearcher(String name) {
+            IndexSearcher searcher = super.acquireIndexSearcher(name);
+            if (name.equals(reopenOnAcquire)) {
+                reopenOnAcquire = null;
+                try {
+                    commit(name);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                dirtyReader(name);
+            }
+            return searcher;
+        }
+    }
+
+    /**
+     * Writers switch a few documents between two values while they are
+     * committed and reopened: a write going back to the value of an older
+     * reader must not be taken for an unchanged one.
+     */
+    private void sameIds(boolean nrt, boolean synch) throws Exception {
+        Play.configuration.setProperty("play.search.nrt", String.valueOf(nrt));
+        Play.configuration.setProperty("play.search.nrt.commitInterval", "1s");
+        Play.configuration.setProperty("play.search.synch", String.valueOf(synch));
+        Search.init();
+        final Store store = Search.getCurrentStore();
+        final String index = INDEXES[0];
+        store.delete(index);
+        final Map<String, String> expected = new ConcurrentHashMap<String, String>();
+        final Lock[] locks = new Lock[10];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < WRITERS; w++) {
+            final Random random = new Random(w);
+            final String writer = "w" + w;
+            writers.add(new Thread("same-id-writer-" + w) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < 100; i++) {
+                            // a batch of a few ids, locked in order: the
+                            // writes of one id are ordered, not the writers
+                            SortedMap<Integer, String> batch = new TreeMap<Integer, String>();
+                            while (batch.size() < 4) {
+                                batch.put(random.nextInt(locks.length), random.nextBoolean() ? "A" : "B");
+                            }
+                            for (int id : batch.keySet()) {
+                                locks[id].lock();
+                            }
+                            try {
+                                // writes of ids of this writer first, so that
+                                // reopens happen while the batch holds its
+                                // searcher
+                                List<IndexOperation> operations = new ArrayList<IndexOperation>();
+                                for (int j = 0; j < 100; j++) {
+                                    operations.add(operation(index, writer + "-" + j, "i" + i));
+                                }
+                                for (Map.Entry<Integer, String> write : batch.entrySet()) {
+                                    operations.add(operation(index, String.valueOf(write.getKey()), write.getValue()));
+                                }
+                                store.apply(index, operations);
+                                for (Map.Entry<Integer, String> write : batch.entrySet()) {
+                                    expected.put(String.valueOf(write.getKey()), write.getValue());
+                                }
+                            } finally {
+                                for (int id : batch.keySet()) {
+                                    locks[id].unlock();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+        Thread maintenance = new Thread("same-id-maintenance") {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (writing.get()) {
+                        store.reopen(index);
+                        Thread.sleep(3);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        };
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        maintenance.start();
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing.set(false);
+        maintenance.join();
+
+        assertEquals("failures, first one: " + failures.peek(), 0, failures.size());
+        store.optimize(index);
+        Searcher searcher = store.acquireSearcher(index);
+        try {
+            for (Map.Entry<String, String> document : expected.entrySet()) {
+                TopDocs hits = searcher.search(new TermQuery(new Term("_docID", document.getKey())), 2);
+                assertEquals("documents with id " + document.getKey(), 1, hits.totalHits);
+                assertEquals("title of " + document.getKey() + (nrt ? ", nrt" : "") + (synch ? "" : ", async"), document.getValue(), searcher.doc(hits.scoreDocs[0].doc).get("title"));
+            }
+        } finally {
+            store.releaseSearcher(index, searcher);
+        }
+    }
+
+    private void stress(boolean nrt, boolean synch) throws Exception {
+        Play.configuration.setProperty("play.search.nrt", String.valueOf(nrt));
+        Play.configuration.setProperty("play.search.nrt.commitInterval", "1s");
+        Play.configuration.setProperty("play.search.synch", String.valueOf(synch));
+        Play.configuration.setProperty("play.search.shards.stress.Sharded", "3");
+        Search.init();
+        final Store store = Search.getCurrentStore();
+        final Map<String, Map<String, String>> expected = new ConcurrentHashMap<String, Map<String, String>>();
+        for (String index : INDEXES) {
+            store.delete(index);
+            expected.put(index, new ConcurrentHashMap<String, String>());
+        }
+
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+        final AtomicInteger closedSearchers = new AtomicInteger();
+        final AtomicInteger searches = new AtomicInteger();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<Thread>();
+        List<Thread> others = new ArrayList<Thread>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(new Thread("stress-writer-" + w) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            for (int i = 0; i < IDS; i++) {
+                                String index = INDEXES[i % INDEXES.length];
+                                String id = String.valueOf(writer * 100000 + i);
+                                if (round == ROUNDS - 1 && i % 5 == 0) {
+                                    store.apply(index, Collections.singletonList(new IndexOperation(index, id, null)));
+                                    expected.get(index).remove(id);
+                                } else {
+                                    // every 7th document is rewritten unchanged,
+                                    // every 11th one goes back to its first value
+                                    int version = i % 7 == 0 ? 0 : (i % 11 == 0 ? round % 2 : round);
+                                    String title = "w" + writer + " i" + i + " v" + version;
+                                    store.apply(index, Collections.singletonList(operation(index, id, title)));
+                                    expected.get(index).put(id, title);
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            final Random random = new Random(r);
+            others.add(new Thread("stress-reader-" + r) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (writing.get()) {
+                        String index = INDEXES[random.nextInt(INDEXES.length)];
+                        try {
+                            Searcher searcher = store.acquireSearcher(index);
+                            try {
+                                TopDocs top = searcher.search(new MatchAllDocsQuery(), 20);
+                                for (ScoreDoc hit : top.scoreDocs) {
+                                    assertNotNull(searcher.doc(hit.doc).get("title"));
+                                }
+                                searcher.search(new TermQuery(new Term("title", "v1")), 10);
+                                searches.incrementAndGet();
+                            } finally {
+                                store.releaseSearcher(index, searcher);
+                            }
+                        } catch (AlreadyClosedException e) {
+                            closedSearchers.incrementAndGet();
+                            failures.add(e);
+                        } catch (Throwable e) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            });
+        }
+
+        others.add(new Thread("stress-maintenance") {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 0; writing.get(); i++) {
+                        for (String index : INDEXES) {
+                            if (i % 5 == 0)
+                                store.optimize(index);
+                            else
+                                store.reopen(index);
+                        }
+                        Thread.sleep(20);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : others) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread : others) {
+            thread.join();
+        }
+
+        if (!failures.isEmpty())
+            failures.peek().printStackTrace();
+        assertEquals("searchers used once closed", 0, closedSearchers.get());
+        assertEquals("failures, first one: " + failures.peek(), 0, failures.size());
+        assertTrue("no search ran", searches.get() > 0);
+
+        for (String index : INDEXES) {
+            // commits and makes every write visible, whatever the mode
+            store.optimize(index);
+            Searcher searcher = store.acquireSearcher(index);
+            try {
+                Map<String, String> documents = expected.get(index);
+                assertEquals(index + " document count", documents.size(), searcher.search(new MatchAllDocsQuery(), 1).totalHits);
+                for (Map.Entry<String, String> document : documents.entrySet()) {
+                    TopDocs hits = searcher.search(new TermQuery(new Term("_docID", document.getKey())), 2);
+                    assertEquals(index + " documents with id " + document.getKey(), 1, hits.totalHits);
+                    assertEquals(document.getValue(), searcher.doc(hits.scoreDocs[0].doc).get("title"));
+                }
+            } finally {
+                store.releaseSearcher(index, searcher);
+            }
+        }
+    }
+
+    private static IndexOperation operation(String index, String id, String title) {
+        Document document = new Document();
+        document.add(new Field("_docID", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        document.add(new Field("title", title, Field.Store.YES, Field.Index.ANALYZED));
+        document.add(new Field("allfield", title, Field.Store.NO, Field.Index.ANALYZED));
+        document.add(new Field(Fingerprints.FIELD, Fingerprints.of(document), Field.Store.YES, Field.Index.NO));
+        return new IndexOperation(index, id, document);
+    }
+}
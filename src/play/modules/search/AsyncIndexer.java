@@ -0,0 +1,229 @@
+package play.modules.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import play.Logger;
+import play.Play;
+import play.modules.search.Query.SearchException;
+import play.modules.search.store.IndexOperation;
+import play.modules.search.store.Store;
+
+/**
+ * Applies index operations in the background, so that saving an entity does
+ * not wait for the index. Each index has a bounded queue drained by its own
+ * writer thread, which applies the operations in batches of batchSize, or
+ * whatever arrived within maxLatency, with one commit and reader refresh
+ * per batch.
+ *
+ * @author jfp
+ */
+public class AsyncIndexer {
+    /**
+     * What to do when the queue of an index is full: block the caller until
+     * there is room, apply the operation on the caller thread, or fail
+     */
+    public enum Backpressure {
+        BLOCK, CALLER_RUNS, FAIL
+    }
+
+    private final Store store;
+
+    private final int queueSize;
+
+    private final int batchSize;
+
+    private final long maxLatency;
+
+    private final Backpressure backpressure;
+
+    private final Map<String, Worker> workers = new ConcurrentHashMap<String, Worker>();
+
+    private volatile boolean stopped = false;
+
+    /**
+     * Held by submit() while it enqueues, and by stop() to set stopped: an
+     * operation is either queued before the final drain or applied on the
+     * caller thread
+     */
+    private final ReadWriteLock stopLock = new ReentrantReadWriteLock();
+
+    public AsyncIndexer(Store store) {
+        this.store = store;
+        this.queueSize = Integer.parseInt(Play.configuration.getProperty("play.search.async.queueSize", "10000"));
+        this.batchSize = Integer.parseInt(Play.configuration.getProperty("play.search.async.batchSize", "500"));
+        this.maxLatency = Long.parseLong(Play.configuration.getProperty("play.search.async.maxLatency", "200"));
+        String value = Play.configuration.getProperty("play.search.async.backpressure", "block");
+        if (value.equals("callerRuns"))
+            this.backpressure = Backpressure.CALLER_RUNS;
+        else if (value.equals("fail"))
+            this.backpressure = Backpressure.FAIL;
+        else
+            this.backpressure = Backpressure.BLOCK;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("play.search.async", "false"));
+    }
+
+    public void submit(IndexOperation operation) {
+        stopLock.readLock().lock();
+        try {
+            if (stopped) {
+                store.apply(operation.index, Collections.singletonList(operation));
+                return;
+            }
+            enqueue(operation);
+        } finally {
+            stopLock.readLock().unlock();
+        }
+    }
+
+    private void enqueue(IndexOperation operation) {
+        Worker worker = getWorker(operation.index);
+        worker.submitted();
+        try {
+            if (worker.queue.offer(operation))
+                return;
+            switch (backpressure) {
+            case CALLER_RUNS:
+                try {
+                    store.apply(operation.index, Collections.singletonList(operation));
+                } finally {
+                    worker.completed(1);
+                }
+                return;
+            case FAIL:
+                worker.completed(1);
+                throw new SearchException("Indexing queue of " + operation.index + " is full");
+            default:
+                worker.queue.put(operation);
+            }
+        } catch (InterruptedException e) {
+            worker.completed(1);
+            Thread.currentThread().interrupt();
+            throw new SearchException("Interrupted while waiting for the indexing queue of " + operation.index, e);
+        }
+    }
+
+    /**
+     * Waits until every operation submitted before this call is applied
+     */
+    public void awaitIndexed() throws InterruptedException {
+        for (Worker worker : workers.values()) {
+            worker.await();
+        }
+    }
+
+    /**
+     * Applies the pending operations and stops the writer threads
+     */
+    public void stop() throws InterruptedException {
+        stopLock.writeLock().lock();
+        try {
+            stopped = true;
+        } finally {
+            stopLock.writeLock().unlock();
+        }
+        for (Worker worker : workers.values()) {
+            worker.join();
+            // submitted while the worker was exiting
+            List<IndexOperation> batch = new ArrayList<IndexOperation>();
+            worker.queue.drainTo(batch);
+            worker.apply(batch);
+        }
+        workers.clear();
+    }
+
+    private Worker getWorker(String index) {
+        Worker worker = workers.get(index);
+        if (worker == null) {
+            synchronized (workers) {
+                worker = workers.get(index);
+                if (worker == null) {
+                    worker = new Worker(index);
+                    workers.put(index, worker);
+                    worker.start();
+                }
+            }
+        }
+        return worker;
+    }
+
+    private class Worker extends Thread {
+        final String index;
+
+        final BlockingQueue<IndexOperation> queue = new ArrayBlockingQueue<IndexOperation>(queueSize);
+
+        private long submitted = 0;
+
+        private long completed = 0;
+
+        Worker(String index) {
+            super("search-indexer-" + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        synchronized void submitted() {
+            submitted++;
+        }
+
+        synchronized void completed(int count) {
+            completed += count;
+            notifyAll();
+        }
+
+        synchronized void await() throws InterruptedException {
+            long target = submitted;
+            while (completed < target) {
+                wait();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<IndexOperation> batch = new ArrayList<IndexOperation>(batchSize);
+            while (!stopped || !queue.isEmpty()) {
+                try {
+                    IndexOperation first = queue.poll(maxLatency, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    long deadline = System.currentTimeMillis() + maxLatency;
+                    while (batch.size() < batchSize) {
+                        long wait = deadline - System.currentTimeMillis();
+                        IndexOperation next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    Logger.warn("Indexer of %s interrupted", index);
+                }
+                apply(batch);
+            }
+        }
+
+        void apply(List<IndexOperation> batch) {
+            if (batch.isEmpty())
+                return;
+            try {
+                store.apply(index, batch);
+            } catch (Exception e) {
+                Logger.error(e, "Could not apply %s operations on index %s", batch.size(), index);
+            } finally {
+                completed(batch.size());
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package play.modules.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.lucene.search.SortField;
+
+import play.libs.Codec;
+import play.modules.search.Query.SearchException;
+
+/**
+ * Position of a hit in the order of a query: its value for each sort field,
+ * ending with its object id which makes the order total. It is handed out as
+ * an opaque, URL-safe token and only valid for the sort it was made with.
+ *
+ * @author jfp
+ */
+public class Cursor {
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte FLOAT = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte SHORT = 6;
+    private static final byte BYTE = 7;
+
+    /**
+     * The values of the hit, as found in FieldDoc.fields
+     */
+    final Object[] values;
+
+    Cursor(Object[] values) {
+        this.values = values;
+    }
+
+    /**
+     * @return a token identifying sort so that a cursor made for another
+     *         sort is rejected
+     */
+    private static int signature(SortField[] sort) {
+        StringBuilder signature = new StringBuilder();
+        for (SortField field : sort) {
+            signature.append(field.getField()).append('/').append(field.getType()).append('/').append(field.getReverse()).append(',');
+        }
+        return signature.toString().hashCode();
+    }
+
+    public String encode(SortField[] sort) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeInt(signature(sort));
+            out.writeByte(values.length);
+            for (Object value : values) {
+                if (value == null) {
+                    out.writeByte(NULL);
+                } else if (value instanceof String) {
+                    out.writeByte(STRING);
+                    out.writeUTF((String) value);
+                } else if (value instanceof Integer) {
+                    out.writeByte(INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(LONG);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Float) {
+                    out.writeByte(FLOAT);
+                    out.writeFloat((Float) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(DOUBLE);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof Short) {
+                    out.writeByte(SHORT);
+                    out.writeShort((Short) value);
+                } else if (value instanceof Byte) {
+                    out.writeByte(BYTE);
+                    out.writeByte((Byte) value);
+                } else {
+                    throw new SearchException("Cannot make a cursor on a " + value.getClass().getName() + " sort value");
+                }
+            }
+            out.close();
+            // URL-safe base64, without padding
+            String token = Codec.encodeBASE64(bytes.toByteArray());
+            return token.replace('+', '-').replace('/', '_').replace("=", "");
+        } catch (IOException e) {
+            throw new SearchException(e);
+        }
+    }
+
+    /**
+     * @throws SearchException if the token is invalid or was made for
+     *             another sort
+     */
+    public static Cursor decode(String token, SortField[] sort) throws SearchException {
+        try {
+            StringBuilder base64 = new StringBuilder(token.trim().replace('-', '+').replace('_', '/'));
+            while (base64.length() % 4 != 0) {
+                base64.append('=');
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Codec.decodeBASE64(base64.toString())));
+            if (in.readByte() != VERSION || in.readInt() != signature(sort))
+                throw new SearchException("The cursor " + token + " was not made for this query order");
+            Object[] values = new Object[in.readByte()];
+            if (values.length != sort.length)
+                throw new SearchException("The cursor " + token + " was not made for this query order");
+            for (int i = 0; i < values.length; i++) {
+                switch (in.readByte()) {
+                case NULL:
+                    values[i] = null;
+                    break;
+                case STRING:
+                    values[i] = in.readUTF();
+                    break;
+                case INT:
+                    values[i] = in.readInt();
+                    break;
+                case LONG:
+                    values[i] = in.readLong();
+                    break;
+                case FLOAT:
+                    values[i] = in.readFloat();
+                    break;
+                case DOUBLE:
+                    values[i] = in.readDouble();
+                    break;
+                case SHORT:
+                    values[i] = in.readShort();
+                    break;
+                case BYTE:
+                    values[i] = in.readByte();
+                    break;
+                default:
+                    throw new SearchException("Invalid cursor " + token);
+                }
+            }
+            return new Cursor(values);
+        } catch (IOException e) {
+            throw new SearchException("Invalid cursor " + token, e);
+        } catch (RuntimeException e) {
+            if (e instanceof SearchException)
+                throw e;
+            throw new SearchException("Invalid cursor " + token, e);
+        }
+    }
+}
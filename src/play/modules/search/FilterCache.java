@@ -0,0 +1,88 @@
+package play.modules.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+
+/**
+ * Bounded LRU cache of the filters of Query.filter(), keyed like the
+ * QueryCache. Each filter is a CachingWrapperFilter: it keeps the matching
+ * documents of every segment it was applied to as a bitset, until the
+ * segment is merged away, so a filter repeated by many queries is evaluated
+ * once per segment.
+ *
+ * @author jfp
+ */
+public class FilterCache {
+    private final int maxSize;
+
+    private final Map<String, CachingWrapperFilter> filters;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public FilterCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.filters = new LinkedHashMap<String, CachingWrapperFilter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachingWrapperFilter> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public Filter get(String key) {
+        if (maxSize <= 0)
+            return null;
+        Filter filter;
+        synchronized (filters) {
+            filter = filters.get(key);
+        }
+        if (filter == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return filter;
+    }
+
+    public void put(String key, CachingWrapperFilter filter) {
+        if (maxSize <= 0)
+            return;
+        synchronized (filters) {
+            filters.put(key, filter);
+        }
+    }
+
+    public void clear() {
+        synchronized (filters) {
+            filters.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (filters) {
+            return filters.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+}
@@ -0,0 +1,36 @@
+package play.modules.search;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Counts the matching documents without scoring nor sorting them
+ *
+ * @author jfp
+ */
+public class HitCountCollector extends Collector {
+    private int count = 0;
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) {
+    }
+
+    @Override
+    public void collect(int doc) {
+        count++;
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) {
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return true;
+    }
+}
@@ -13,5 +13,10 @@ import java.lang.annotation.Target;
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface Indexed {
-
+    /**
+     * Version or last modification timestamp field, increasing on every
+     * update. When set, the index can be reindexed incrementally: only the
+     * rows changed since the last reindex are read.
+     */
+    String versionField() default "";
 }
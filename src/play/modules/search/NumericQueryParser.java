@@ -0,0 +1,113 @@
+package play.modules.search;
+
+import java.text.SimpleDateFormat;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.Version;
+
+import play.modules.search.store.ClassMapping;
+import play.modules.search.store.ClassMapping.FieldMapping;
+
+/**
+ * Query parser turning the ranges and terms on the numeric and date fields of
+ * a class into NumericRangeQuery, which match the trie-encoded values instead
+ * of enumerating text terms. * stands for an open bound, dates are given as
+ * yyyy-MM-dd, yyyy-MM-dd'T'HH:mm:ss (quoted) or milliseconds:
+ *
+ * <pre>
+ * price:[10 TO 20] AND created:{2010-01-01 TO *}
+ * </pre>
+ *
+ * @author jfp
+ */
+public class NumericQueryParser extends QueryParser {
+    private static final String[] DATE_FORMATS = { "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd" };
+
+    private final ClassMapping mapping;
+
+    /**
+     * @param clazz the searched class, null to parse every field as text
+     */
+    public NumericQueryParser(Version version, String defaultField, Analyzer analyzer, Class<?> clazz) {
+        super(version, defaultField, analyzer);
+        this.mapping = clazz != null ? ClassMapping.of(clazz) : null;
+    }
+
+    @Override
+    protected Query getRangeQuery(String field, String part1, String part2, boolean inclusive) throws ParseException {
+        FieldMapping numeric = mapping != null ? mapping.getNumericField(field) : null;
+        if (numeric == null)
+            return super.getRangeQuery(field, part1, part2, inclusive);
+        return newRangeQuery(field, numeric, parse(numeric, part1), parse(numeric, part2), inclusive);
+    }
+
+    @Override
+    protected Query getFieldQuery(String field, String queryText) throws ParseException {
+        FieldMapping numeric = mapping != null ? mapping.getNumericField(field) : null;
+        if (numeric == null)
+            return super.getFieldQuery(field, queryText);
+        Number value = parse(numeric, queryText);
+        if (value == null)
+            throw new ParseException("Cannot search " + field + " for " + queryText);
+        return newRangeQuery(field, numeric, value, value, true);
+    }
+
+    private Query newRangeQuery(String field, FieldMapping numeric, Number min, Number max, boolean inclusive) {
+        switch (numeric.numericType) {
+        case SortField.INT:
+            return NumericRangeQuery.newIntRange(field, numeric.precisionStep, (Integer) min, (Integer) max, inclusive, inclusive);
+        case SortField.LONG:
+            return NumericRangeQuery.newLongRange(field, numeric.precisionStep, (Long) min, (Long) max, inclusive, inclusive);
+        case SortField.FLOAT:
+            return NumericRangeQuery.newFloatRange(field, numeric.precisionStep, (Float) min, (Float) max, inclusive, inclusive);
+        default:
+            return NumericRangeQuery.newDoubleRange(field, numeric.precisionStep, (Double) min, (Double) max, inclusive, inclusive);
+        }
+    }
+
+    /**
+     * @return the value of a bound in the type of the trie encoding, null
+     *         for an open bound
+     */
+    private Number parse(FieldMapping numeric, String text) throws ParseException {
+        text = text.trim();
+        if (text.equals("*"))
+            return null;
+        try {
+            switch (numeric.numericType) {
+            case SortField.INT:
+                return Integer.valueOf(text);
+            case SortField.LONG:
+                return numeric.date ? parseDate(numeric, text) : Long.valueOf(text);
+            case SortField.FLOAT:
+                return Float.valueOf(text);
+            default:
+                return Double.valueOf(text);
+            }
+        } catch (NumberFormatException e) {
+            throw new ParseException("'" + text + "' is not a valid value for " + numeric.name);
+        }
+    }
+
+    private Long parseDate(FieldMapping numeric, String text) throws ParseException {
+        for (String format : DATE_FORMATS) {
+            try {
+                SimpleDateFormat parser = new SimpleDateFormat(format);
+                parser.setLenient(false);
+                return parser.parse(text).getTime();
+            } catch (java.text.ParseException e) {
+                // next format
+            }
+        }
+        try {
+            return Long.valueOf(text);
+        } catch (NumberFormatException e) {
+            throw new ParseException("'" + text + "' is not a valid date for " + numeric.name + ", expected yyyy-MM-dd, yyyy-MM-dd'T'HH:mm:ss or milliseconds");
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package play.modules.search;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
-import org.apache.lucene.search.BooleanQuery;
-import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
 
+import play.Logger;
 import play.Play;
 import play.db.jpa.JPA;
 import play.db.jpa.JPABase;
 import play.exceptions.UnexpectedException;
+import play.modules.search.store.ClassMapping;
+import play.modules.search.store.ClassMapping.FieldMapping;
 import play.modules.search.store.ConvertionUtils;
+import play.modules.search.store.IdCache;
 import play.modules.search.store.Store;
 
 /**
@@ -38,15 +52,18 @@ public class Query {
 
     protected boolean reverse = false;
 
-    protected IndexSearcher indexSearcher;
-    
-    protected TopDocs topDocs = null;
+    protected List<String> filters = new ArrayList<String>();
+
+    protected boolean paged = false;
+
+    protected String after;
+
+    private String cursor;
 
     protected Query(String query, Class<JPABase> clazz, Store store) {
         this.query = query;
         this.clazz = clazz;
         this.store = store;
-        indexSearcher = store.getIndexSearcher(clazz.getName());
     }
 
     public Query page(int offset, int pageSize) {
@@ -65,6 +82,52 @@ public class Query {
         return this;
     }
 
+    /**
+     * Restricts the hits to the documents matching each filter, a Lucene
+     * query that does not change the scores. The documents matching a filter
+     * are cached per index segment and reused by the next queries with the
+     * same filter, which suits constraints repeated by every query:
+     *
+     * <pre>
+     * Search.search("title:dogs", Post.class).filter("tenant:42", "status:published")
+     * </pre>
+     */
+    public Query filter(String... filters) {
+        for (String filter : filters) {
+            this.filters.add(filter);
+        }
+        return this;
+    }
+
+    /**
+     * Pages with a cursor instead of an offset: only the hits after the
+     * cursor are collected, so each page costs the same whatever its depth.
+     * Pass null for the first page, then the cursor() of the previous page:
+     *
+     * <pre>
+     * Query q = Search.search("*:*", Post.class).orderBy("date").page(0, 100).after(null);
+     * List&lt;Long&gt; ids = q.fetchIds();
+     * q.after(q.cursor()).fetchIds();
+     * </pre>
+     *
+     * The offset of page() is counted from the cursor.
+     */
+    public Query after(String cursor) {
+        this.paged = true;
+        this.after = cursor;
+        return this;
+    }
+
+    /**
+     * @return the cursor of the last hit of the page just executed, null if
+     *         the page was not full and there is nothing after it
+     */
+    public String cursor() throws SearchException {
+        if (!paged)
+            throw new SearchException("cursor() needs a query paged with after()");
+        return cursor;
+    }
+
     public Query orderBy(String... order) {
         this.order = new String[order.length];
         for (int i = 0; i < order.length; i++) {
@@ -79,11 +142,11 @@ public class Query {
             if (reverse) {
                 if (order.length != 1)
                     throw new SearchException("reverse can be used while sorting only one field with oderBy");
-                sort.setSort(new SortField(order[0], ConvertionUtils.getSortType(clazz, order[0]), true));
+                sort.setSort(ConvertionUtils.getSortField(clazz, order[0], true));
             } else {
                 SortField[] fields = new SortField[order.length];
                 for (int i = 0; i < fields.length; i++) {
-                    fields[i] = new SortField(order[i], ConvertionUtils.getSortType(clazz, order[i]));
+                    fields[i] = ConvertionUtils.getSortField(clazz, order[i], false);
                 }
                 sort.setSort(fields);
             }
@@ -106,6 +169,8 @@ public class Query {
                 objects.add(queryResult.object);
             }
             return (List<T>) objects;
+        } catch (SearchException e) {
+            throw e;
         } catch (Exception e) {
             throw new UnexpectedException(e);
         }
@@ -119,82 +184,301 @@ public class Query {
                 objects.add(Long.parseLong(queryResult.id));
             }
             return objects;
+        } catch (SearchException e) {
+            throw e;
         } catch (Exception e) {
             throw new UnexpectedException(e);
         }
     }
 
+    /**
+     * Iterates over the objects of all the hits, loaded lazily by batches of
+     * play.search.fetch.batchSize. The entity manager is cleared between
+     * batches, so the objects of a batch are detached once the next one is
+     * loaded: save them before moving on. The page of this query is ignored.
+     */
+    public <T extends JPABase> Iterable<T> iterate() {
+        return new Iterable<T>() {
+            public Iterator<T> iterator() {
+                return new QueryIterator<T>(copy(), true) {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    protected T convert(QueryResult result) {
+                        return (T) result.object;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Iterates over the ids of all the hits, searched lazily by batches of
+     * play.search.fetch.batchSize. The page of this query is ignored.
+     */
+    public Iterable<Long> iterateIds() {
+        return new Iterable<Long>() {
+            public Iterator<Long> iterator() {
+                return new QueryIterator<Long>(copy(), false) {
+                    @Override
+                    protected Long convert(QueryResult result) {
+                        return Long.parseLong(result.id);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return this query paged by batches of play.search.fetch.batchSize
+     */
+    private Query copy() {
+        Query copy = new Query(query, clazz, store);
+        copy.order = order;
+        copy.reverse = reverse;
+        copy.filters = new ArrayList<String>(filters);
+        copy.pageSize = Integer.parseInt(Play.configuration.getProperty("play.search.fetch.batchSize", "500"));
+        return copy;
+    }
+
+    /**
+     * Counts the matching documents, without sorting nor loading them
+     */
     public long count() throws SearchException {
+        Searcher indexSearcher = store.acquireSearcher(clazz.getName());
         try {
-            org.apache.lucene.search.Query luceneQuery = new QueryParser(Search.getLuceneVersion(), "_docID", Search.getAnalyser()).parse(query);
-            topDocs = store.getIndexSearcher(clazz.getName()).search(luceneQuery, null, Integer.MAX_VALUE, getSort());
-            return topDocs.totalHits;
+            HitCountCollector collector = new HitCountCollector();
+            indexSearcher.search(getLuceneQuery(), collector);
+            return collector.getCount();
         } catch (ParseException e) {
             throw new SearchException(e);
+        } catch (SearchException e) {
+            throw e;
         } catch (Exception e) {
             throw new UnexpectedException(e);
+        } finally {
+            store.releaseSearcher(clazz.getName(), indexSearcher);
         }
     }
 
+    /**
+     * @return what identifies the hits of this query on a given searcher
+     */
+    protected String getResultKey() {
+        StringBuilder key = new StringBuilder(clazz.getName());
+        key.append('\u0000').append(Search.getDefaultSearchField()).append('\u0000').append(query);
+        key.append('\u0000');
+        for (String field : order) {
+            key.append(field).append(',');
+        }
+        key.append('\u0000').append(reverse).append('\u0000').append(offset).append('\u0000').append(pageSize);
+        for (String filter : filters) {
+            key.append('\u0000').append(filter);
+        }
+        return key.toString();
+    }
+
+    private org.apache.lucene.search.Query getLuceneQuery() throws ParseException {
+        org.apache.lucene.search.Query luceneQuery = Search.parse(query, Search.getDefaultSearchField(), clazz);
+        for (String filter : filters) {
+            luceneQuery = new FilteredQuery(luceneQuery, Search.getFilter(filter, clazz));
+        }
+        return luceneQuery;
+    }
+
     /**
      * Executes the lucene query against the index. You get QueryResults.
+     * Only offset + pageSize hits are collected, all() collects exactly the
+     * number of matching documents. The hits are reused from the result
+     * cache when it is enabled for the class and the index did not change.
      * 
      * @param fetch load the corresponding JPABase objects in the QueryResult
      *            Object
      * @return
      */
     public List<QueryResult> executeQuery(boolean fetch) throws SearchException {
-        try {
-            if (topDocs == null) {
-                String defaultField = Play.configuration.getProperty("play.search.defaultSearchField", "allfield");
-                org.apache.lucene.search.Query luceneQuery =
-                                new QueryParser(Search.getLuceneVersion(), defaultField, Search.getAnalyser()).parse(query);
-                BooleanQuery.setMaxClauseCount(Integer.parseInt(Play.configuration.getProperty(
-                                "play.search.maxClauseCount", "1024")));
-                topDocs = indexSearcher.search(luceneQuery, null, Integer.MAX_VALUE, getSort());
+        return executeQuery(fetch, null);
+    }
+
+    /**
+     * Executes the query and returns the stored values of some fields of
+     * each hit, read from the index only: the objects are not loaded from
+     * the database. Only the requested fields are decoded.
+     *
+     * <pre>
+     * for (QueryResult hit : Search.search("title:dogs", Post.class).fetchFields("title", "price"))
+     *     hit.get("title");
+     * </pre>
+     *
+     * @param fields names of fields annotated with @Field(stored=true)
+     */
+    public List<QueryResult> fetchFields(String... fields) throws SearchException {
+        ClassMapping mapping = ClassMapping.of(clazz);
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            FieldMapping field = mapping.getField(fields[i]);
+            if (field == null || !field.stored)
+                throw new SearchException("The field " + fields[i] + " of " + clazz.getName() + " is not stored, annotate it with @Field(stored=true)");
+            names[i] = field.name;
+        }
+        return executeQuery(false, new Projection(fields, names));
+    }
+
+    /**
+     * Fields read by fetchFields(): the requested names and the names of
+     * their index fields
+     */
+    static class Projection {
+        final String[] fields;
+
+        final String[] names;
+
+        final FieldSelector selector;
+
+        Projection(String[] fields, String[] names) {
+            this.fields = fields;
+            this.names = names;
+            this.selector = new MapFieldSelector(names);
+        }
+
+        void load(Searcher searcher, QueryResult result) throws IOException {
+            Document document = searcher.doc(result.doc, selector);
+            result.fields = fields;
+            result.values = new String[names.length];
+            for (int i = 0; i < names.length; i++) {
+                result.values[i] = document.get(names[i]);
             }
-            List<QueryResult> results = new ArrayList<QueryResult>();
-            if (topDocs == null)
-                return results;
+        }
+    }
 
-            int l = topDocs.totalHits;
-            if (offset > l) {
-                return results;
+    private List<QueryResult> executeQuery(boolean fetch, Projection projection) throws SearchException {
+        Searcher indexSearcher = store.acquireSearcher(clazz.getName());
+        try {
+            ResultCache cache = Search.getResultCache();
+            // cursor pages are not cached, they hold the next cursor
+            String key = cache.isEnabled(clazz) && !paged ? getResultKey() : null;
+            List<QueryResult> results = key != null ? cache.get(key, indexSearcher) : null;
+            if (paged) {
+                results = searchAfter(indexSearcher);
+            } else if (results == null) {
+                results = search(indexSearcher);
+                if (key != null)
+                    cache.put(key, indexSearcher, results);
             }
-            List<Long> ids = new ArrayList<Long>();
-            if (pageSize > 0) {
-                for (int i = offset; i < (offset + pageSize > l ? l : offset + pageSize); i++) {
-                    QueryResult qresult = new QueryResult();
-                    qresult.score = topDocs.scoreDocs[i].score;
-                    qresult.id = indexSearcher.doc(topDocs.scoreDocs[i].doc).get("_docID");
-                    if (fetch) {
-                        Object objectId = ConvertionUtils.getIdValueFromIndex(clazz, qresult.id);
-                        qresult.object = (JPABase)JPA.em().find(clazz, objectId);
-                        if (qresult.object == null)
-                            throw new SearchException("Please re-index");
-                    }
-                    results.add(qresult);
-                }
-            } else {
-                for (int i = 0; i < l; i++) {
-                    QueryResult qresult = new QueryResult();
-                    qresult.score = topDocs.scoreDocs[i].score;
-                    qresult.id = indexSearcher.doc(topDocs.scoreDocs[i].doc).get("_docID");
-                    if (fetch) {
-                        Object objectId = ConvertionUtils.getIdValueFromIndex(clazz, qresult.id);
-                        qresult.object = (JPABase)JPA.em().find(clazz, objectId);
-                        if (qresult.object == null)
-                            throw new SearchException("Please re-index");
-                    }
-                    results.add(qresult);
+            if (projection != null) {
+                // the document numbers are those of this searcher
+                for (QueryResult result : results) {
+                    projection.load(indexSearcher, result);
                 }
             }
+            if (fetch)
+                results = fetchObjects(results);
             return results;
         } catch (ParseException e) {
             throw new SearchException(e);
+        } catch (SearchException e) {
+            throw e;
         } catch (Exception e) {
             throw new UnexpectedException(e);
+        } finally {
+            store.releaseSearcher(clazz.getName(), indexSearcher);
+        }
+    }
+
+    /**
+     * @return the hits of the requested page, without their objects
+     */
+    private List<QueryResult> search(Searcher indexSearcher) throws Exception {
+        org.apache.lucene.search.Query luceneQuery = getLuceneQuery();
+        List<QueryResult> results = new ArrayList<QueryResult>();
+        int start;
+        int numHits;
+        if (pageSize > 0) {
+            start = offset;
+            numHits = (int) Math.min((long) offset + pageSize, Integer.MAX_VALUE);
+        } else {
+            start = 0;
+            HitCountCollector counter = new HitCountCollector();
+            indexSearcher.search(luceneQuery, counter);
+            numHits = counter.getCount();
         }
+        if (numHits <= start)
+            return results;
+
+        TopDocs topDocs = indexSearcher.search(luceneQuery, null, numHits, getSort());
+        IdCache ids = IdCache.isEnabled() ? new IdCache(indexSearcher) : null;
+        for (int i = start; i < topDocs.scoreDocs.length; i++) {
+            QueryResult qresult = new QueryResult();
+            qresult.score = topDocs.scoreDocs[i].score;
+            qresult.doc = topDocs.scoreDocs[i].doc;
+            qresult.id = IdCache.getId(indexSearcher, ids, topDocs.scoreDocs[i].doc);
+            results.add(qresult);
+        }
+        return results;
+    }
+
+    /**
+     * @return the hits of the page after the cursor, ordered by the sort
+     *         fields then by id so that no two hits are equal
+     */
+    private List<QueryResult> searchAfter(Searcher indexSearcher) throws Exception {
+        if (pageSize <= 0)
+            throw new SearchException("after() needs a page size, use page()");
+        SortField[] order = getSort().getSort();
+        SortField[] sort = new SortField[order.length + 1];
+        System.arraycopy(order, 0, sort, 0, order.length);
+        sort[order.length] = new SortField(IdCache.ID_FIELD, SortField.STRING);
+        int numHits = (int) Math.min((long) offset + pageSize, Integer.MAX_VALUE);
+        TopFieldCollector top = TopFieldCollector.create(new Sort(sort), numHits, true, true, false, false);
+        Collector collector = after != null ? new SearchAfterCollector(top, sort, Cursor.decode(after, sort)) : top;
+        indexSearcher.search(getLuceneQuery(), collector);
+        ScoreDoc[] hits = top.topDocs().scoreDocs;
+        List<QueryResult> results = new ArrayList<QueryResult>();
+        for (int i = offset; i < hits.length; i++) {
+            QueryResult qresult = new QueryResult();
+            qresult.score = hits[i].score;
+            qresult.doc = hits[i].doc;
+            qresult.id = (String) ((FieldDoc) hits[i]).fields[order.length];
+            results.add(qresult);
+        }
+        cursor = hits.length == numHits ? new Cursor(((FieldDoc) hits[hits.length - 1]).fields).encode(sort) : null;
+        return results;
+    }
+
+    /**
+     * Loads the JPABase objects of the results with one "in" query per batch
+     * of play.search.fetch.batchSize ids, keeping the index order. Ids no
+     * longer in the database are skipped, or raise a SearchException when
+     * play.search.staleIds=fail
+     */
+    @SuppressWarnings("unchecked")
+    protected List<QueryResult> fetchObjects(List<QueryResult> results) throws SearchException {
+        int batchSize = Integer.parseInt(Play.configuration.getProperty("play.search.fetch.batchSize", "500"));
+        boolean failOnStale = Play.configuration.getProperty("play.search.staleIds", "skip").equals("fail");
+        String idField = ConvertionUtils.getIdField(clazz).getName();
+        String jpql = "select e from " + clazz.getCanonicalName() + " as e where e." + idField + " in (:ids)";
+        List<QueryResult> fetched = new ArrayList<QueryResult>(results.size());
+        for (int from = 0; from < results.size(); from += batchSize) {
+            List<QueryResult> batch = results.subList(from, Math.min(from + batchSize, results.size()));
+            List<Object> ids = new ArrayList<Object>(batch.size());
+            for (QueryResult result : batch) {
+                ids.add(ConvertionUtils.getIdValueFromIndex(clazz, result.id));
+            }
+            Map<String, JPABase> objects = new HashMap<String, JPABase>();
+            for (JPABase object : (List<JPABase>) JPA.em().createQuery(jpql).setParameter("ids", ids).getResultList()) {
+                objects.put(ConvertionUtils.getIdValueFor(object) + "", object);
+            }
+            for (QueryResult result : batch) {
+                result.object = objects.get(result.id);
+                if (result.object != null) {
+                    fetched.add(result);
+                } else if (failOnStale) {
+                    throw new SearchException("Object " + result.id + " of " + clazz.getName() + " is no longer in the database, please re-index");
+                } else {
+                    Logger.warn("Object %s of %s is indexed but no longer in the database, skipped. Please re-index", result.id, clazz.getName());
+                }
+            }
+        }
+        return fetched;
     }
 
     public static class QueryResult {
@@ -203,6 +487,30 @@ public class Query {
         public float score;
 
         public JPABase object;
+
+        /**
+         * Stored values of the fields given to fetchFields(), in the same
+         * order, null otherwise
+         */
+        public String[] values;
+
+        String[] fields;
+
+        /**
+         * Document number in the searcher the hit was found with
+         */
+        int doc;
+
+        /**
+         * @return the stored value of a field given to fetchFields()
+         */
+        public String get(String field) {
+            for (int i = 0; fields != null && i < fields.length; i++) {
+                if (fields[i].equals(field))
+                    return values[i];
+            }
+            throw new SearchException("The field " + field + " was not fetched");
+        }
     }
 
     public static class SearchException extends RuntimeException {
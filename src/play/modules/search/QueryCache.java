@@ -0,0 +1,93 @@
+package play.modules.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+
+/**
+ * Bounded LRU cache of parsed Lucene queries, keyed by query string, default
+ * field and searched class. Parsed queries are not modified by searches, so one instance
+ * can be shared by concurrent requests.
+ *
+ * @author jfp
+ */
+public class QueryCache {
+    private final int maxSize;
+
+    private final Map<String, Query> queries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public QueryCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.queries = new LinkedHashMap<String, Query>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Query> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param clazz the searched class, its numeric fields are parsed as
+     *            numbers, null if there is none
+     */
+    public static String key(Class<?> clazz, String defaultField, String query) {
+        return (clazz != null ? clazz.getName() : "") + '\u0000' + defaultField + '\u0000' + query;
+    }
+
+    public Query get(String key) {
+        if (maxSize <= 0)
+            return null;
+        Query query;
+        synchronized (queries) {
+            query = queries.get(key);
+        }
+        if (query == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return query;
+    }
+
+    public void put(String key, Query query) {
+        if (maxSize <= 0)
+            return;
+        synchronized (queries) {
+            queries.put(key, query);
+        }
+    }
+
+    public void clear() {
+        synchronized (queries) {
+            queries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (queries) {
+            return queries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+}
@@ -0,0 +1,56 @@
+package play.modules.search;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import play.db.jpa.JPA;
+import play.modules.search.Query.QueryResult;
+
+/**
+ * Walks through all the hits of a query one cursor page at a time, so that
+ * only one batch of hits (and of objects) is in memory. When objects are
+ * loaded, the entity manager is cleared before each new batch: the objects
+ * of the previous batches are detached.
+ *
+ * @author jfp
+ */
+public abstract class QueryIterator<T> implements Iterator<T> {
+    private final Query query;
+
+    private final boolean fetch;
+
+    private Iterator<QueryResult> batch;
+
+    private boolean first = true;
+
+    QueryIterator(Query query, boolean fetch) {
+        this.query = query;
+        this.fetch = fetch;
+    }
+
+    public boolean hasNext() {
+        while (batch == null || !batch.hasNext()) {
+            if (!first && query.cursor() == null)
+                return false;
+            if (fetch && !first)
+                JPA.em().clear();
+            List<QueryResult> results = query.after(first ? null : query.cursor()).executeQuery(fetch);
+            first = false;
+            batch = results.iterator();
+        }
+        return true;
+    }
+
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return convert(batch.next());
+    }
+
+    protected abstract T convert(QueryResult result);
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,198 @@
+package play.modules.search;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Searcher;
+
+import play.Play;
+import play.modules.search.Query.QueryResult;
+
+/**
+ * LRU cache of the hits (ids and scores) of executed queries, bounded by an
+ * estimate of the memory they take. An entry is only valid for the searcher
+ * it was computed on: once the index is reopened, the next lookup finds a
+ * different searcher and recomputes it, so writes never need to clear the
+ * cache. Entries do not keep their searcher alive. Enabled with
+ * play.search.resultCache=true, or per class with
+ * play.search.resultCache.<class name>.
+ *
+ * @author jfp
+ */
+public class ResultCache {
+    /**
+     * Approximate size of a cached hit, besides its id: the QueryResult, the
+     * String and the list slot
+     */
+    private static final int HIT_OVERHEAD = 80;
+
+    private static final int ENTRY_OVERHEAD = 120;
+
+    private final long maxBytes;
+
+    private final Map<String, Entry> entries;
+
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private static final String PREFIX = "play.search.resultCache.";
+
+    /**
+     * play.search.resultCache
+     */
+    private final boolean enabled;
+
+    /**
+     * play.search.resultCache.<class name>, by class name
+     */
+    private final Map<String, Boolean> enabledClasses = new HashMap<String, Boolean>();
+
+    private static class Entry {
+        final WeakReference<Searcher> searcher;
+
+        final List<QueryResult> results;
+
+        final long bytes;
+
+        Entry(Searcher searcher, List<QueryResult> results, long bytes) {
+            this.searcher = new WeakReference<Searcher>(searcher);
+            this.results = results;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param maxBytes 0 for a disabled cache, the configuration is then not
+     *            read
+     */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        if (maxBytes <= 0) {
+            this.enabled = false;
+            return;
+        }
+        this.enabled = Boolean.parseBoolean(Play.configuration.getProperty("play.search.resultCache", "false").trim());
+        for (Object name : Play.configuration.keySet()) {
+            String key = name.toString();
+            if (key.startsWith(PREFIX) && !key.equals(PREFIX + "maxMemory"))
+                enabledClasses.put(key.substring(PREFIX.length()), Boolean.parseBoolean(Play.configuration.getProperty(key).trim()));
+        }
+    }
+
+    /**
+     * @return true if the results of the queries on clazz are cached:
+     *         play.search.resultCache.<class name> if set, or else
+     *         play.search.resultCache. Default: false
+     */
+    public boolean isEnabled(Class<?> clazz) {
+        if (maxBytes <= 0)
+            return false;
+        Boolean classEnabled = enabledClasses.get(clazz.getName());
+        return classEnabled != null ? classEnabled : enabled;
+    }
+
+    /**
+     * @return a copy of the hits cached for key on searcher, null if there
+     *         are none or they were computed on another searcher
+     */
+    public List<QueryResult> get(String key, Searcher searcher) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.searcher.get() != searcher) {
+                entries.remove(key);
+                bytes -= entry.bytes;
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(entry.results);
+    }
+
+    public void put(String key, Searcher searcher, List<QueryResult> results) {
+        long size = ENTRY_OVERHEAD + 2L * key.length();
+        for (QueryResult result : results) {
+            size += HIT_OVERHEAD + 2L * result.id.length();
+        }
+        if (size > maxBytes)
+            return;
+        Entry entry = new Entry(searcher, copy(results), size);
+        synchronized (entries) {
+            Entry old = entries.put(key, entry);
+            if (old != null)
+                bytes -= old.bytes;
+            bytes += size;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().bytes;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Cached hits are shared, each caller gets its own QueryResults to load
+     * objects into
+     */
+    private static List<QueryResult> copy(List<QueryResult> results) {
+        List<QueryResult> copy = new ArrayList<QueryResult>(results.size());
+        for (QueryResult result : results) {
+            QueryResult hit = new QueryResult();
+            hit.id = result.id;
+            hit.score = result.score;
+            hit.doc = result.doc;
+            copy.add(hit);
+        }
+        return copy;
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+}
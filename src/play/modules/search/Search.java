@@ -1,12 +1,28 @@
 package play.modules.search;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.util.Version;
 
 import play.Logger;
 import play.Play;
 import play.classloading.ApplicationClassloader;
 import play.exceptions.UnexpectedException;
+import play.modules.search.Query.SearchException;
+import play.modules.search.store.ClassMapping;
+import play.modules.search.store.Fingerprints;
+import play.modules.search.store.IdCache;
+import play.modules.search.store.SortCache;
+import play.modules.search.store.IndexOperation;
 import play.modules.search.store.Store;
 
 /**
@@ -25,7 +41,13 @@ import play.modules.search.store.Store;
 public class Search {
     private static String ANALYSER_CLASS;
     private static Version LUCENE_VERSION;
+    private static String DEFAULT_SEARCH_FIELD;
+    private static volatile Analyzer analyser;
+    private static QueryCache queryCache = new QueryCache(0);
+    private static ResultCache resultCache = new ResultCache(0);
+    private static FilterCache filterCache = new FilterCache(0);
     private static Store store;
+    private static AsyncIndexer indexer;
 
     public static void init() {
         try {
@@ -35,6 +57,17 @@ public class Search {
         }
         ANALYSER_CLASS = Play.configuration.getProperty("play.search.analyser", "org.apache.lucene.analysis.standard.StandardAnalyzer");
         LUCENE_VERSION = Version.valueOf("LUCENE_" + Play.configuration.getProperty("play.search.lucene.version", "30"));
+        DEFAULT_SEARCH_FIELD = Play.configuration.getProperty("play.search.defaultSearchField", "allfield");
+        BooleanQuery.setMaxClauseCount(Integer.parseInt(Play.configuration.getProperty("play.search.maxClauseCount", "1024")));
+        analyser = null;
+        ClassMapping.clear();
+        queryCache = new QueryCache(Integer.parseInt(Play.configuration.getProperty("play.search.queryCache.size", "1000")));
+        filterCache = new FilterCache(Integer.parseInt(Play.configuration.getProperty("play.search.filterCache.size", "100")));
+        IdCache.configure();
+        SortCache.configure();
+        Fingerprints.configure();
+        TransactionIndexer.configure();
+        resultCache = new ResultCache(Long.parseLong(Play.configuration.getProperty("play.search.resultCache.maxMemory", "16")) * 1024 * 1024);
         String storeClassName = Play.configuration.getProperty("play.search.store","play.modules.search.store.FilesystemStore");
         try {
             store = (Store) Class.forName(storeClassName).newInstance();
@@ -42,10 +75,28 @@ public class Search {
         } catch (Exception e) {
             throw new UnexpectedException("Could not intialize store",e);
         }
+        if (AsyncIndexer.isEnabled())
+            indexer = new AsyncIndexer(store);
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * @return the analyzer shared by all writers and query parsers, created
+     *         once per init()
+     */
     public static Analyzer getAnalyser() {
+        Analyzer current = analyser;
+        if (current == null) {
+            synchronized (Search.class) {
+                if (analyser == null)
+                    analyser = newAnalyser();
+                current = analyser;
+            }
+        }
+        return current;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Analyzer newAnalyser() {
         Class<Analyzer> clazz = null;
         try {
             clazz = (Class<Analyzer>) Play.classloader.loadClass(ANALYSER_CLASS);
@@ -68,6 +119,60 @@ public class Search {
         return LUCENE_VERSION;
     }
 
+    public static String getDefaultSearchField() {
+        return DEFAULT_SEARCH_FIELD;
+    }
+
+    public static QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public static ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public static FilterCache getFilterCache() {
+        return filterCache;
+    }
+
+    /**
+     * Parses a query string, reusing the already parsed instance when the
+     * same query was recently parsed
+     */
+    public static org.apache.lucene.search.Query parse(String query, String defaultField) throws ParseException {
+        return parse(query, defaultField, null);
+    }
+
+    /**
+     * Parses a query string on the index of clazz: ranges and terms on its
+     * numeric and date fields become numeric range queries
+     */
+    public static org.apache.lucene.search.Query parse(String query, String defaultField, Class<?> clazz) throws ParseException {
+        String key = QueryCache.key(clazz, defaultField, query);
+        org.apache.lucene.search.Query luceneQuery = queryCache.get(key);
+        if (luceneQuery == null) {
+            luceneQuery = new NumericQueryParser(getLuceneVersion(), defaultField, getAnalyser(), clazz).parse(query);
+            queryCache.put(key, luceneQuery);
+        }
+        return luceneQuery;
+    }
+
+    /**
+     * Parses a filter on the index of clazz, reusing the instance that
+     * already cached its matching documents when the same filter was
+     * recently used
+     */
+    public static Filter getFilter(String filter, Class<?> clazz) throws ParseException {
+        String key = QueryCache.key(clazz, getDefaultSearchField(), filter);
+        Filter cached = filterCache.get(key);
+        if (cached == null) {
+            CachingWrapperFilter parsed = new CachingWrapperFilter(new QueryWrapperFilter(parse(filter, getDefaultSearchField(), clazz)));
+            filterCache.put(key, parsed);
+            cached = parsed;
+        }
+        return cached;
+    }
+
     public static Store getCurrentStore () {
         return store;
     }
@@ -78,11 +183,68 @@ public class Search {
     }
 
     public static void unIndex(Object object) {
-        store.unIndex(object);
+        if (TransactionIndexer.isEnabled() && TransactionIndexer.defer(object, true))
+            return;
+        if (indexer == null) {
+            store.unIndex(object);
+            return;
+        }
+        IndexOperation operation = IndexOperation.unIndex(object);
+        if (operation != null)
+            indexer.submit(operation);
     }
 
     public static void index(Object object) {
-        store.index(object,object.getClass().getName());
+        if (TransactionIndexer.isEnabled() && TransactionIndexer.defer(object, false))
+            return;
+        if (indexer == null) {
+            store.index(object,object.getClass().getName());
+            return;
+        }
+        try {
+            IndexOperation operation = IndexOperation.index(object, object.getClass().getName());
+            if (operation != null)
+                indexer.submit(operation);
+        } catch (SearchException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Applies index operations, through the asynchronous indexer if enabled,
+     * or else as one batch per index
+     */
+    public static void apply(List<IndexOperation> operations) {
+        if (indexer != null) {
+            for (IndexOperation operation : operations) {
+                indexer.submit(operation);
+            }
+            return;
+        }
+        Map<String, List<IndexOperation>> byIndex = new LinkedHashMap<String, List<IndexOperation>>();
+        for (IndexOperation operation : operations) {
+            List<IndexOperation> batch = byIndex.get(operation.index);
+            if (batch == null) {
+                batch = new ArrayList<IndexOperation>();
+                byIndex.put(operation.index, batch);
+            }
+            batch.add(operation);
+        }
+        for (Map.Entry<String, List<IndexOperation>> batch : byIndex.entrySet()) {
+            store.apply(batch.getKey(), batch.getValue());
+        }
+    }
+
+    /**
+     * With play.search.async=true, waits until the index operations submitted
+     * so far are applied (and visible, unless play.search.synch=false).
+     * Returns immediately otherwise.
+     */
+    public static void awaitIndexed() throws InterruptedException {
+        if (indexer != null)
+            indexer.awaitIndexed();
     }
 
     public static void rebuildAllIndexes () throws Exception {
@@ -90,6 +252,10 @@ public class Search {
     }
 
     public static void shutdown() throws Exception {
+        if (indexer != null) {
+            indexer.stop();
+            indexer = null;
+        }
         if (store!=null)
             store.stop();
     }
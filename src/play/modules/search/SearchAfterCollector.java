@@ -0,0 +1,140 @@
+package play.modules.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.ScoreCachingWrappingScorer;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Passes to another collector only the documents that come after a cursor
+ * in the order of sort, so that the next page of a query is collected with
+ * a queue of one page, whatever its depth. The values of the documents are
+ * read from the same field caches as the sort, plus the score when sorting
+ * by relevance.
+ *
+ * @author jfp
+ */
+public class SearchAfterCollector extends Collector {
+    private final Collector collector;
+
+    private final SortField[] sort;
+
+    private final Object[] after;
+
+    private final Object[] values;
+
+    private Scorer scorer;
+
+    public SearchAfterCollector(Collector collector, SortField[] sort, Cursor after) {
+        this.collector = collector;
+        this.sort = sort;
+        this.after = after.values;
+        this.values = new Object[sort.length];
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        // the score is read here and by the sort
+        this.scorer = new ScoreCachingWrappingScorer(scorer);
+        collector.setScorer(this.scorer);
+    }
+
+    @Override
+    public void setNextReader(IndexReader reader, int docBase) throws IOException {
+        for (int i = 0; i < sort.length; i++) {
+            values[i] = load(reader, sort[i]);
+        }
+        collector.setNextReader(reader, docBase);
+    }
+
+    /**
+     * @return the values of a sort field in a segment, the same arrays as
+     *         the ones of the sort comparators
+     */
+    private static Object load(IndexReader reader, SortField sortField) throws IOException {
+        String field = sortField.getField();
+        FieldCache.Parser parser = sortField.getParser();
+        switch (sortField.getType()) {
+        case SortField.SCORE:
+            return null;
+        case SortField.INT:
+            return parser != null ? FieldCache.DEFAULT.getInts(reader, field, (FieldCache.IntParser) parser) : FieldCache.DEFAULT.getInts(reader, field);
+        case SortField.LONG:
+            return parser != null ? FieldCache.DEFAULT.getLongs(reader, field, (FieldCache.LongParser) parser) : FieldCache.DEFAULT.getLongs(reader, field);
+        case SortField.FLOAT:
+            return parser != null ? FieldCache.DEFAULT.getFloats(reader, field, (FieldCache.FloatParser) parser) : FieldCache.DEFAULT.getFloats(reader, field);
+        case SortField.DOUBLE:
+            return parser != null ? FieldCache.DEFAULT.getDoubles(reader, field, (FieldCache.DoubleParser) parser) : FieldCache.DEFAULT.getDoubles(reader, field);
+        case SortField.SHORT:
+            return FieldCache.DEFAULT.getShorts(reader, field);
+        case SortField.BYTE:
+            return FieldCache.DEFAULT.getBytes(reader, field);
+        case SortField.STRING:
+            return FieldCache.DEFAULT.getStringIndex(reader, field);
+        default:
+            throw new IllegalArgumentException("Cannot page after a sort on " + field + " of type " + sortField.getType());
+        }
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (isAfter(doc))
+            collector.collect(doc);
+    }
+
+    private boolean isAfter(int doc) throws IOException {
+        for (int i = 0; i < sort.length; i++) {
+            int c = compare(i, doc);
+            if (sort[i].getReverse())
+                c = -c;
+            if (c != 0)
+                return c > 0;
+        }
+        // the cursor document itself
+        return false;
+    }
+
+    /**
+     * @return the order of doc against the cursor on the i-th sort field,
+     *         as the sort comparator would: scores are descending
+     */
+    private int compare(int i, int doc) throws IOException {
+        Object value = values[i];
+        Object cursor = after[i];
+        switch (sort[i].getType()) {
+        case SortField.SCORE:
+            return Float.compare((Float) cursor, scorer.score());
+        case SortField.INT:
+            return compareLongs(((int[]) value)[doc], (Integer) cursor);
+        case SortField.LONG:
+            return compareLongs(((long[]) value)[doc], (Long) cursor);
+        case SortField.FLOAT:
+            return Float.compare(((float[]) value)[doc], (Float) cursor);
+        case SortField.DOUBLE:
+            return Double.compare(((double[]) value)[doc], (Double) cursor);
+        case SortField.SHORT:
+            return compareLongs(((short[]) value)[doc], (Short) cursor);
+        case SortField.BYTE:
+            return compareLongs(((byte[]) value)[doc], (Byte) cursor);
+        default:
+            FieldCache.StringIndex index = (FieldCache.StringIndex) value;
+            String term = index.lookup[index.order[doc]];
+            if (term == null || cursor == null)
+                return term == null ? (cursor == null ? 0 : -1) : 1;
+            return term.compareTo((String) cursor);
+        }
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return collector.acceptsDocsOutOfOrder();
+    }
+}
@@ -47,6 +47,7 @@ public class SearchPlugin extends PlayPlugin {
             Router.addRoute("GET", "/@search/optimize/{name}", "modules.search.Administration.optimize");
             Router.addRoute("GET", "/@search/reindex/{name}", "modules.search.Administration.reindex");
             Router.addRoute("GET", "/@search/reopen/{name}", "modules.search.Administration.reopen");
+            Router.addRoute("GET", "/@search/incremental/{name}", "modules.search.Administration.incremental");
         }
     }
 }
@@ -0,0 +1,131 @@
+package play.modules.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.JPA;
+import play.db.jpa.JPABase;
+import play.modules.search.store.ConvertionUtils;
+import play.modules.search.store.IndexOperation;
+
+/**
+ * Collects the index changes made during a JPA transaction and applies them
+ * once the transaction is committed. Changes on the same object are collapsed
+ * so that only the last one is applied, and nothing is applied if the
+ * transaction rolls back.
+ *
+ * @author jfp
+ */
+public class TransactionIndexer implements Synchronization {
+    private static final ThreadLocal<TransactionIndexer> current = new ThreadLocal<TransactionIndexer>();
+
+    private final Transaction transaction;
+
+    /**
+     * Last change per object: the object, and whether it was deleted
+     */
+    private final Map<String, Change> changes = new LinkedHashMap<String, Change>();
+
+    private final List<IndexOperation> operations = new ArrayList<IndexOperation>();
+
+    private TransactionIndexer(Transaction transaction) {
+        this.transaction = transaction;
+    }
+
+    private static volatile boolean enabled = false;
+
+    /**
+     * Reads play.search.transactional, called by Search.init()
+     */
+    public static void configure() {
+        enabled = Boolean.parseBoolean(Play.configuration.getProperty("play.search.transactional", "false"));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a change to be applied when the current transaction commits.
+     *
+     * @return false if there is no transaction to attach the change to, the
+     *         caller should then apply it right away
+     */
+    public static boolean defer(Object object, boolean delete) {
+        if (!(object instanceof JPABase) || !JPA.isEnabled())
+            return false;
+        Object delegate = JPA.em().getDelegate();
+        if (!(delegate instanceof Session))
+            return false;
+        Transaction transaction = ((Session) delegate).getTransaction();
+        if (transaction == null || !transaction.isActive())
+            return false;
+        TransactionIndexer indexer = current.get();
+        if (indexer == null || indexer.transaction != transaction) {
+            indexer = new TransactionIndexer(transaction);
+            transaction.registerSynchronization(indexer);
+            current.set(indexer);
+        }
+        indexer.record(object, delete);
+        return true;
+    }
+
+    private void record(Object object, boolean delete) {
+        Object id = ConvertionUtils.getIdValueFor((JPABase) object);
+        String key = object.getClass().getName() + "#" + (id != null ? id : "@" + System.identityHashCode(object));
+        changes.remove(key);
+        changes.put(key, new Change(object, delete));
+    }
+
+    /**
+     * Builds the documents while the objects are still attached, after the
+     * final flush
+     */
+    public void beforeCompletion() {
+        for (Change change : changes.values()) {
+            try {
+                IndexOperation operation = change.delete ? IndexOperation.unIndex(change.object) : IndexOperation.index(change.object, change.object.getClass().getName());
+                if (operation != null)
+                    operations.add(operation);
+            } catch (Exception e) {
+                Logger.error(e, "Could not build the index document of %s", change.object);
+            }
+        }
+        changes.clear();
+    }
+
+    public void afterCompletion(int status) {
+        if (current.get() == this)
+            current.remove();
+        if (status != Status.STATUS_COMMITTED) {
+            Logger.debug("Transaction not committed, %s index changes discarded", operations.size() + changes.size());
+            return;
+        }
+        try {
+            Search.apply(operations);
+        } catch (Exception e) {
+            Logger.error(e, "Could not apply %s index changes of a committed transaction", operations.size());
+        }
+    }
+
+    private static class Change {
+        final Object object;
+
+        final boolean delete;
+
+        Change(Object object, boolean delete) {
+            this.object = object;
+            this.delete = delete;
+        }
+    }
+}
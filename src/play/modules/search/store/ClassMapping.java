@@ -0,0 +1,381 @@
+package play.modules.search.store;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.SortField;
+
+import play.Logger;
+import play.Play;
+import play.db.jpa.Blob;
+import play.db.jpa.JPABase;
+import play.modules.search.Indexed;
+
+/**
+ * What the search module needs to know about a class, computed once by
+ * reflection: indexed fields and their accessors, id field, sort types. Used
+ * by ConvertionUtils so that indexing and querying do no reflection lookups.
+ *
+ * @author jfp
+ */
+public class ClassMapping {
+    private static final Map<Class<?>, ClassMapping> mappings = new ConcurrentHashMap<Class<?>, ClassMapping>();
+
+    public final Class<?> clazz;
+
+    public final boolean indexed;
+
+    /**
+     * The field annotated with @Id, null if there is none
+     */
+    public final Field idField;
+
+    public final List<FieldMapping> fields;
+
+    /**
+     * The field named by @Indexed(versionField), null if there is none
+     */
+    public final Field versionField;
+
+    private final Map<String, FieldMapping> byName = new HashMap<String, FieldMapping>();
+
+    /**
+     * Ascending sort of each sortable field, by field name (with the
+     * _untokenized suffix for the untokenized copy of a field)
+     */
+    private final Map<String, SortField> sortFields = new HashMap<String, SortField>();
+
+    /**
+     * Tokenized text fields, which have several terms per document
+     */
+    private final Set<String> unsortable = new HashSet<String>();
+
+    /**
+     * Sorts on the fields declared sortable, loaded when a searcher opens
+     */
+    public final List<SortField> warmedSortFields;
+
+    private final Map<String, FieldMapping> numericFields = new HashMap<String, FieldMapping>();
+
+    public static ClassMapping of(Class<?> clazz) {
+        ClassMapping mapping = mappings.get(clazz);
+        if (mapping == null) {
+            mapping = new ClassMapping(clazz);
+            mappings.put(clazz, mapping);
+        }
+        return mapping;
+    }
+
+    /**
+     * Forgets the computed mappings, the classes may have been reloaded
+     */
+    public static void clear() {
+        mappings.clear();
+    }
+
+    private ClassMapping(Class<?> clazz) {
+        this.clazz = clazz;
+        Indexed indexed = clazz.getAnnotation(Indexed.class);
+        this.indexed = indexed != null;
+        Field version = null;
+        if (indexed != null && indexed.versionField().length() > 0) {
+            try {
+                version = clazz.getField(indexed.versionField());
+            } catch (NoSuchFieldException e) {
+                Logger.warn("Version field %s not found on %s, it cannot be reindexed incrementally", indexed.versionField(), clazz.getName());
+            }
+        }
+        this.versionField = version;
+        Field id = null;
+        List<FieldMapping> fields = new ArrayList<FieldMapping>();
+        List<SortField> warmed = new ArrayList<SortField>();
+        for (Field field : clazz.getFields()) {
+            if (id == null && field.getAnnotation(Id.class) != null)
+                id = field;
+            play.modules.search.Field index = field.getAnnotation(play.modules.search.Field.class);
+            if (index == null)
+                continue;
+            FieldMapping mapping = new FieldMapping(field, index);
+            byName.put(field.getName(), mapping);
+            if (mapping.isNumeric()) {
+                numericFields.put(field.getName(), mapping);
+                numericFields.put(mapping.name, mapping);
+            }
+            String sortName = mapping.forcedUntokenized ? field.getName() + "_untokenized" : field.getName();
+            if (mapping.isNumeric()) {
+                sortFields.put(sortName, numericSortField(mapping));
+            } else {
+                int type = sortTypeOf((mapping.joinField != null ? mapping.joinField : field).getType());
+                if (type == SortField.SCORE)
+                    type = SortField.STRING;
+                if (mapping.forcedUntokenized) {
+                    sortFields.put(sortName, new SortField(mapping.name + "_untokenized", type));
+                    unsortable.add(field.getName());
+                } else if (mapping.tokenize && (mapping.kind == FieldMapping.STRING || mapping.kind == FieldMapping.BLOB)) {
+                    unsortable.add(field.getName());
+                } else {
+                    sortFields.put(sortName, new SortField(mapping.name, type));
+                }
+            }
+            if (field.getType().isArray() || Collection.class.isAssignableFrom(field.getType()))
+                continue;
+            fields.add(mapping);
+            if (mapping.sortable && sortFields.containsKey(sortName))
+                warmed.add(sortFields.get(sortName));
+        }
+        this.idField = id;
+        this.fields = Collections.unmodifiableList(fields);
+        this.warmedSortFields = Collections.unmodifiableList(warmed);
+    }
+
+    /**
+     * @param name the index field name, possibly with the _untokenized suffix
+     * @return the SortField type, null if the field is not annotated with
+     *         @Field
+     */
+    public Integer getSortType(String name) {
+        SortField sort = sortFields.get(name);
+        return sort != null ? sort.getType() : null;
+    }
+
+    /**
+     * @return false for a tokenized text field: it can only be sorted on if
+     *         declared sortable, through its untokenized copy
+     */
+    public boolean isSortable(String name) {
+        return !unsortable.contains(name);
+    }
+
+    public FieldMapping getField(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return the field indexed as a trie-encoded number under name, null if
+     *         there is none
+     */
+    public FieldMapping getNumericField(String name) {
+        return numericFields.get(name);
+    }
+
+    /**
+     * @return how to sort on a field, null if the field is not annotated
+     *         with @Field or cannot be sorted on. Numeric fields are sorted
+     *         on their trie encoding, text fields on their term ordinals.
+     */
+    public SortField getSortField(String name, boolean reverse) {
+        SortField sort = sortFields.get(name);
+        if (sort == null || !reverse)
+            return sort;
+        if (sort.getParser() != null)
+            return new SortField(sort.getField(), sort.getParser(), true);
+        return new SortField(sort.getField(), sort.getType(), true);
+    }
+
+    private static SortField numericSortField(FieldMapping numeric) {
+        switch (numeric.numericType) {
+        case SortField.INT:
+            return new SortField(numeric.name, FieldCache.NUMERIC_UTILS_INT_PARSER);
+        case SortField.LONG:
+            return new SortField(numeric.name, FieldCache.NUMERIC_UTILS_LONG_PARSER);
+        case SortField.FLOAT:
+            return new SortField(numeric.name, FieldCache.NUMERIC_UTILS_FLOAT_PARSER);
+        default:
+            return new SortField(numeric.name, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER);
+        }
+    }
+
+    /**
+     * Numeric and date fields are indexed as trie-encoded numbers if
+     * play.search.numeric is true. Off by default: the indexes built as text
+     * by previous versions would match nothing until rebuilt.
+     */
+    public static boolean isNumericEnabled() {
+        return Boolean.parseBoolean(Play.configuration.getProperty("play.search.numeric", "false"));
+    }
+
+    /**
+     * @return the SortField type of the trie encoding of a field type: INT,
+     *         LONG (dates too), FLOAT or DOUBLE, SCORE if it is not numeric
+     */
+    static int numericTypeOf(Class<?> type) {
+        if (Date.class.isAssignableFrom(type))
+            return SortField.LONG;
+        int sortType = sortTypeOf(type);
+        if (sortType == SortField.SHORT || sortType == SortField.BYTE)
+            return SortField.INT;
+        return sortType;
+    }
+
+    static int sortTypeOf(Class<?> type) {
+        if (type.equals(long.class) || type.equals(Long.class)) return SortField.LONG;
+        if (type.equals(int.class) || type.equals(Integer.class)) return SortField.INT;
+        if (type.equals(double.class) || type.equals(Double.class)) return SortField.DOUBLE;
+        if (type.equals(float.class) || type.equals(Float.class)) return SortField.FLOAT;
+        if (type.equals(short.class) || type.equals(Short.class)) return SortField.SHORT;
+        if (type.equals(byte.class) ||type.equals(Byte.class)) return SortField.BYTE;
+        return SortField.SCORE;
+    }
+
+    /**
+     * A member annotated with @Field
+     */
+    public static class FieldMapping {
+        public static final int STRING = 0;
+        public static final int BLOB = 1;
+        public static final int MANY_TO_ONE = 2;
+        public static final int OTHER = 3;
+
+        public final Field field;
+
+        /**
+         * Name of the field in the index
+         */
+        public final String name;
+
+        public final boolean stored;
+
+        public final boolean tokenize;
+
+        public final boolean sortable;
+
+        /**
+         * Also indexed untokenized as name_untokenized, for sorting
+         */
+        public final boolean forcedUntokenized;
+
+        /**
+         * The value is taken from the joined object (joinField is then null
+         * if the joined class has no such field)
+         */
+        public final boolean join;
+
+        /**
+         * Field of the joined object to index instead of this one
+         */
+        public final Field joinField;
+
+        /**
+         * How the value is turned into a string: STRING, BLOB, MANY_TO_ONE or
+         * OTHER
+         */
+        public final int kind;
+
+        /**
+         * SortField type of the trie encoding of the value (INT, LONG, FLOAT
+         * or DOUBLE), SCORE if the value is indexed as text
+         */
+        public final int numericType;
+
+        /**
+         * The value is a date, indexed as milliseconds
+         */
+        public final boolean date;
+
+        public final int precisionStep;
+
+        FieldMapping(Field field, play.modules.search.Field index) {
+            this.field = field;
+            this.stored = index.stored();
+            this.tokenize = index.tokenize();
+            this.sortable = index.sortable();
+            this.join = JPABase.class.isAssignableFrom(field.getType()) && index.joinField().length() > 0;
+            Field joined = null;
+            if (join) {
+                try {
+                    joined = field.getType().getField(index.joinField());
+                } catch (NoSuchFieldException e) {
+                    // the joined value is then never indexed
+                }
+            }
+            this.joinField = joined;
+            this.name = join ? index.joinField() : field.getName();
+            Field valueField = joined != null ? joined : field;
+            this.kind = kindOf(valueField);
+            this.numericType = isNumericEnabled() && (!join || joined != null) ? numericTypeOf(valueField.getType()) : SortField.SCORE;
+            this.date = Date.class.isAssignableFrom(valueField.getType());
+            this.precisionStep = Integer.parseInt(Play.configuration.getProperty("play.search.numeric.precisionStep", "4"));
+            // a number is sorted on its trie encoding
+            this.forcedUntokenized = index.tokenize() && index.sortable() && numericType == SortField.SCORE;
+        }
+
+        public boolean isNumeric() {
+            return numericType != SortField.SCORE;
+        }
+
+        /**
+         * @return the number to index for this field of object (dates as
+         *         milliseconds), null if nothing should be indexed
+         */
+        public Number numericValue(Object object) throws Exception {
+            Object value;
+            if (!join) {
+                value = field.get(object);
+            } else {
+                Object joinObject = field.get(object);
+                value = joinObject != null && joinField != null ? joinField.get(joinObject) : null;
+            }
+            if (value instanceof Date)
+                return ((Date) value).getTime();
+            return (Number) value;
+        }
+
+        /**
+         * @return the string to index for this field of object, null if
+         *         nothing should be indexed
+         */
+        public String valueOf(Object object) throws Exception {
+            if (!join)
+                return valueOf(object, field, kind);
+            if (joinField == null)
+                return null;
+            Object joinObject = field.get(object);
+            if (joinObject == null)
+                return null;
+            return valueOf(joinObject, joinField, kind);
+        }
+
+        static String valueOf(Object object, Field field, int kind) throws Exception {
+            Object o = field.get(object);
+            if (o instanceof Date)
+                return DateTools.dateToString((Date) o, DateTools.Resolution.MILLISECOND);
+            switch (kind) {
+            case STRING:
+                return (String) o;
+            case BLOB:
+                if (o != null)
+                    return FileExtractor.getText((Blob) o);
+                break;
+            case MANY_TO_ONE:
+                if (o instanceof JPABase)
+                    return "" + ConvertionUtils.getIdValueFor((JPABase) o);
+                break;
+            }
+            return "" + o;
+        }
+
+        static int kindOf(Field field) {
+            if (field.getType().equals(String.class))
+                return STRING;
+            if (field.getType().equals(Blob.class))
+                return BLOB;
+            if (field.isAnnotationPresent(ManyToOne.class))
+                return MANY_TO_ONE;
+            return OTHER;
+        }
+    }
+}
@@ -1,21 +1,17 @@
 package play.modules.search.store;
 
-import java.util.Collection;
-import javax.persistence.Id;
-import javax.persistence.ManyToOne;
-
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
 import org.apache.lucene.search.SortField;
 
 import play.Logger;
 import play.data.binding.Binder;
-import play.db.jpa.Blob;
 import play.db.jpa.JPABase;
 import play.db.jpa.Model;
 import play.exceptions.UnexpectedException;
-import play.modules.search.Indexed;
 import play.modules.search.Query.SearchException;
+import play.modules.search.store.ClassMapping.FieldMapping;
 
 /**
  * Various utils handling object to index and query result to object conversion
@@ -31,8 +27,8 @@ public class ConvertionUtils {
      * @throws Exception
      */
     public static Document toDocument(Object object) throws Exception {
-        Indexed indexed = object.getClass().getAnnotation(Indexed.class);
-        if (indexed == null)
+        ClassMapping mapping = ClassMapping.of(object.getClass());
+        if (!mapping.indexed)
             return null;
         if (!(object instanceof JPABase))
             return null;
@@ -40,76 +36,70 @@ public class ConvertionUtils {
         Document document = new Document();
         document.add(new Field("_docID", getIdValueFor(jpaBase) + "", Field.Store.YES, Field.Index.NOT_ANALYZED));
         StringBuffer allValue = new StringBuffer();
-        for (java.lang.reflect.Field field : object.getClass().getFields()) {
-            play.modules.search.Field index = field.getAnnotation(play.modules.search.Field.class);
-            if (index == null)
-                continue;
-            if (field.getType().isArray())
-                continue;
-            if (Collection.class.isAssignableFrom(field.getType()))
+        for (FieldMapping index : mapping.fields) {
+            String value = index.valueOf(object);
+            if (value == null)
                 continue;
 
-            String name = field.getName();
-            String value = null;
-
-            if (JPABase.class.isAssignableFrom(field.getType()) && !(index.joinField().length() == 0)) {
-                JPABase joinObject = (JPABase ) field.get(object);
-                for (java.lang.reflect.Field joinField : joinObject.getClass().getFields()) {
-                    if (joinField.getName().equals(index.joinField())) {
-                        name = joinField.getName();
-                        value = valueOf(joinObject, joinField);
-                    }
+            if (index.isNumeric()) {
+                Number number = index.numericValue(object);
+                if (number != null) {
+                    document.add(toNumericField(index, number));
+                    allValue.append(value).append(' ');
                 }
-            } else {
-                value = valueOf(object, field);
-            }
-
-            if (value == null)
                 continue;
-
-            document.add(new Field(name, value, index.stored() ? Field.Store.YES : Field.Store.NO,
-                            index.tokenize() ? Field.Index.ANALYZED : Field.Index.NOT_ANALYZED));
-            if (index.tokenize() && index.sortable()) {
-                document.add(new Field(name + "_untokenized", value, index.stored() ? Field.Store.YES : Field.Store.NO,
+            }
+            document.add(new Field(index.name, value, index.stored ? Field.Store.YES : Field.Store.NO,
+                            index.tokenize ? Field.Index.ANALYZED : Field.Index.NOT_ANALYZED));
+            if (index.forcedUntokenized) {
+                document.add(new Field(index.name + "_untokenized", value, index.stored ? Field.Store.YES : Field.Store.NO,
                                 Field.Index.NOT_ANALYZED));
             }
             allValue.append(value).append(' ');
         }
         document.add(new Field("allfield", allValue.toString(), Field.Store.NO, Field.Index.ANALYZED));
+        if (Fingerprints.isEnabled())
+            document.add(new Field(Fingerprints.FIELD, Fingerprints.of(document), Field.Store.YES, Field.Index.NO));
         return document;
     }
 
-    public static String valueOf(Object object, java.lang.reflect.Field field) throws Exception {
-        if (field.getType().equals(String.class)) {
-            return (String ) field.get(object);
-        }
-        if (field.getType().equals(Blob.class) && field.get(object) != null) {
-            return FileExtractor.getText((Blob) field.get(object));
+    /**
+     * @return the trie-encoded field of a number, so that range queries and
+     *         sorts read the number instead of its text
+     */
+    static NumericField toNumericField(FieldMapping index, Number number) {
+        NumericField field = new NumericField(index.name, index.precisionStep, index.stored ? Field.Store.YES : Field.Store.NO, true);
+        switch (index.numericType) {
+        case SortField.INT:
+            return field.setIntValue(number.intValue());
+        case SortField.LONG:
+            return field.setLongValue(number.longValue());
+        case SortField.FLOAT:
+            return field.setFloatValue(number.floatValue());
+        default:
+            return field.setDoubleValue(number.doubleValue());
         }
+    }
 
-        Object o = field.get(object);
-        if (field.isAnnotationPresent(ManyToOne.class) && o instanceof JPABase) {
-            return "" + getIdValueFor((JPABase ) o);
-        }
+    public static String valueOf(Object object, java.lang.reflect.Field field) throws Exception {
+        return FieldMapping.valueOf(object, field, FieldMapping.kindOf(field));
+    }
 
-        return "" + field.get(object);
+    public static SortField getSortField(Class<?> clazz, String field, boolean reverse) throws SearchException {
+        ClassMapping mapping = ClassMapping.of(clazz);
+        if (!mapping.isSortable(field))
+            throw new SearchException("The field " + field + " of " + clazz + " is tokenized, annotate it with @Field(sortable=true) to sort on it");
+        SortField sortField = mapping.getSortField(field, reverse);
+        if (sortField == null)
+            throw new SearchException("The field "+field+" is not found on class "+clazz);
+        return sortField;
     }
 
     public static int getSortType (Class clazz, String field) throws SearchException {
-        java.lang.reflect.Field fi;
-        try {
-            fi = clazz.getField(field);
-        } catch (Exception e) {
+        Integer type = ClassMapping.of(clazz).getSortType(field);
+        if (type == null)
             throw new SearchException("The field "+field+" is not found on class "+clazz);
-        }
-        Class type = fi.getType();
-        if (type.equals(long.class) || type.equals(Long.class)) return SortField.LONG;
-        if (type.equals(int.class) || type.equals(Integer.class)) return SortField.INT;
-        if (type.equals(double.class) || type.equals(Double.class)) return SortField.DOUBLE;
-        if (type.equals(float.class) || type.equals(Float.class)) return SortField.FLOAT;
-        if (type.equals(short.class) || type.equals(Short.class)) return SortField.SHORT;
-        if (type.equals(byte.class) ||type.equals(Byte.class)) return SortField.BYTE;
-        return SortField.SCORE;
+        return type;
     }
     
     /**
@@ -138,11 +128,9 @@ public class ConvertionUtils {
      * @return corresponding field
      */
     public static java.lang.reflect.Field getIdField(Class<?> clazz) {
-        for (java.lang.reflect.Field field : clazz.getFields()) {
-            if (field.getAnnotation(Id.class) != null) {
-                return field;
-            }
-        }
+        java.lang.reflect.Field field = ClassMapping.of(clazz).idField;
+        if (field != null)
+            return field;
         throw new RuntimeException("Your class " + clazz.getName()
                         + " is annotated with javax.persistence.Id but the field Id was not found");
     }
@@ -171,13 +159,7 @@ public class ConvertionUtils {
     }
 
     public static boolean isForcedUntokenized(Class<?> clazz, String fieldName) {
-        try {
-            java.lang.reflect.Field field = clazz.getField(fieldName);
-            play.modules.search.Field index = field.getAnnotation(play.modules.search.Field.class);
-            return index.tokenize() && index.sortable();
-        } catch (Exception e) {
-            Logger.error("%s", e.getCause());
-        }
-        return false;
+        FieldMapping field = ClassMapping.of(clazz).getField(fieldName);
+        return field != null && field.forcedUntokenized;
     }
 }
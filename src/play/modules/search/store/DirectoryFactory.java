@@ -0,0 +1,165 @@
+package play.modules.search.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+import play.Logger;
+import play.Play;
+import play.exceptions.UnexpectedException;
+
+/**
+ * Opens the Lucene directory of each index folder according to
+ * play.search.directory, or play.search.directory.<index name> for a given
+ * index:
+ * <ul>
+ * <li>fs: let Lucene choose for the platform (default)</li>
+ * <li>mmap: memory-mapped files, for large read-heavy indexes on 64-bit JVMs</li>
+ * <li>nio: positional reads, for many concurrent searches (not on Windows)</li>
+ * <li>simple: plain random access files</li>
+ * <li>ram: in memory only, lost on restart</li>
+ * </ul>
+ * A folder has one directory instance, shared by its writer and readers, so
+ * that a ram index is seen by both.
+ *
+ * @author jfp
+ */
+public class DirectoryFactory {
+    public static final String FS = "fs";
+    public static final String MMAP = "mmap";
+    public static final String NIO = "nio";
+    public static final String SIMPLE = "simple";
+    public static final String RAM = "ram";
+
+    private final ConcurrentHashMap<String, Directory> directories = new ConcurrentHashMap<String, Directory>();
+
+    /**
+     * @return the directory strategy of an index
+     */
+    public String getStrategy(String name) {
+        // the shards of an index share its strategy
+        if (name.contains(FilesystemStore.SHARD_SEPARATOR))
+            name = name.substring(0, name.indexOf(FilesystemStore.SHARD_SEPARATOR));
+        String strategy = Play.configuration.getProperty("play.search.directory." + name);
+        if (strategy == null)
+            strategy = Play.configuration.getProperty("play.search.directory", FS);
+        strategy = strategy.trim().toLowerCase();
+        if (!strategy.equals(FS) && !strategy.equals(MMAP) && !strategy.equals(NIO) && !strategy.equals(SIMPLE) && !strategy.equals(RAM))
+            throw new UnexpectedException("Unknown directory " + strategy + " for index " + name + ", expected fs, mmap, nio, simple or ram");
+        return strategy;
+    }
+
+    /**
+     * @return the directory of folder, an index folder of index name, opened
+     *         on first use. Callers hold the open lock of the index, so two
+     *         threads rarely open the same folder; the second one then closes
+     *         its directory and uses the first one.
+     */
+    public Directory open(String name, File folder) throws IOException {
+        String key = folder.getAbsolutePath();
+        Directory directory = directories.get(key);
+        if (directory == null) {
+            String strategy = getStrategy(name);
+            if (strategy.equals(MMAP)) {
+                MMapDirectory mmap = new MMapDirectory(folder);
+                if (MMapDirectory.UNMAP_SUPPORTED)
+                    mmap.setUseUnmap(true);
+                directory = mmap;
+            } else if (strategy.equals(NIO)) {
+                directory = new NIOFSDirectory(folder);
+            } else if (strategy.equals(SIMPLE)) {
+                directory = new SimpleFSDirectory(folder);
+            } else if (strategy.equals(RAM)) {
+                directory = newRamDirectory(name, folder);
+            } else {
+                directory = FSDirectory.open(folder);
+            }
+            Directory opened = directories.putIfAbsent(key, directory);
+            if (opened != null) {
+                directory.close();
+                return opened;
+            }
+            Logger.trace("Index %s opened in %s with %s", name, folder, directory.getClass().getSimpleName());
+        }
+        return directory;
+    }
+
+    protected Directory newRamDirectory(String name, File folder) throws IOException {
+        return new RAMDirectory();
+    }
+
+    public boolean isInMemory(String name) {
+        return getStrategy(name).equals(RAM);
+    }
+
+    /**
+     * @return true if folder holds an index: on disk, or in memory for a ram
+     *         directory
+     */
+    public boolean exists(String name, File folder) {
+        if (!isInMemory(name))
+            return folder.exists();
+        Directory directory = directories.get(folder.getAbsolutePath());
+        try {
+            return directory != null && IndexReader.indexExists(directory);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes the directory of folder, the content of a ram directory is lost
+     */
+    public void close(File folder) {
+        Directory directory = directories.remove(folder.getAbsolutePath());
+        if (directory == null)
+            return;
+        try {
+            directory.close();
+        } catch (IOException e) {
+            Logger.warn("Could not close the directory of %s: %s", folder, e.getMessage());
+        }
+    }
+
+    public void closeAll() {
+        for (Directory directory : directories.values()) {
+            try {
+                directory.close();
+            } catch (IOException e) {
+                Logger.warn("Could not close directory %s: %s", directory, e.getMessage());
+            }
+        }
+        directories.clear();
+    }
+
+    /**
+     * @return the bytes an index folder takes in memory: the size of its
+     *         files if they are memory-mapped, its size if it is a ram
+     *         directory, 0 otherwise
+     */
+    public long getMemoryBytes(File folder) {
+        Directory directory = directories.get(folder.getAbsolutePath());
+        try {
+            if (directory instanceof RAMDirectory)
+                return ((RAMDirectory) directory).sizeInBytes();
+            if (directory instanceof MMapDirectory) {
+                long size = 0;
+                for (String file : directory.listAll()) {
+                    size += directory.fileLength(file);
+                }
+                return size;
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not size the directory of %s: %s", folder, e.getMessage());
+        }
+        return 0;
+    }
+}
@@ -4,160 +4,726 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.sql.Timestamp;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.IndexWriter.IndexReaderWarmer;
 import org.apache.lucene.index.IndexWriter.MaxFieldLength;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.Directory;
 
 import play.Logger;
 import play.Play;
 import play.classloading.ApplicationClasses.ApplicationClass;
+import play.data.binding.Binder;
 import play.db.jpa.JPA;
 import play.db.jpa.JPABase;
 import play.exceptions.UnexpectedException;
+import play.jobs.Job;
 import play.libs.Files;
+import play.libs.IO;
+import play.libs.Time;
 import play.modules.search.Indexed;
 import play.modules.search.Search;
 
 public class FilesystemStore implements Store {
 
-    protected Map<String, IndexWriter> indexWriters = new HashMap<String, IndexWriter>();
+    /**
+     * Writer and searchers of each index. They are read without locking, an
+     * index is opened, swapped or closed under its own open lock, so that
+     * opening or rebuilding an index never blocks the others.
+     */
+    protected ConcurrentHashMap<String, IndexWriter> indexWriters = new ConcurrentHashMap<String, IndexWriter>();
+
+    protected ConcurrentHashMap<String, SearcherManager> searcherManagers = new ConcurrentHashMap<String, SearcherManager>();
 
-    protected Map<String, IndexSearcher> indexSearchers = new HashMap<String, IndexSearcher>();
+    protected ConcurrentHashMap<String, Object> openLocks = new ConcurrentHashMap<String, Object>();
 
     public static String DATA_PATH;
 
     public static boolean sync = true;
 
+    /**
+     * Near-real-time mode: searchers are obtained from the live IndexWriter
+     * and commits happen every commitInterval seconds instead of on every
+     * write
+     */
+    public static boolean nrt = false;
+
+    public static int commitInterval = 10;
+
+    protected Map<String, Boolean> uncommitted = new ConcurrentHashMap<String, Boolean>();
+
+    protected ScheduledExecutorService committer;
+
+    /**
+     * Loads the caches of the reopened readers in synch mode, null otherwise
+     */
+    protected ExecutorService warmer;
+
+    /**
+     * Searches the shards of the sharded indexes, shared by their searchers
+     */
+    protected ExecutorService shardSearches;
+
+    /**
+     * Running or last rebuild of each index
+     */
+    protected Map<String, RebuildProgress> rebuilds = new ConcurrentHashMap<String, RebuildProgress>();
+
+    /**
+     * Indexes being rebuilt online, live writes are also applied to them
+     */
+    protected ConcurrentHashMap<String, OnlineRebuild> onlineRebuilds = new ConcurrentHashMap<String, OnlineRebuild>();
+
+    /**
+     * Writes hold the read lock of their index, swapping a rebuilt index in
+     * takes the write lock
+     */
+    protected ConcurrentHashMap<String, ReadWriteLock> indexLocks = new ConcurrentHashMap<String, ReadWriteLock>();
+
+    /**
+     * Held by the incremental reindex of each index, a second run started
+     * meanwhile is skipped
+     */
+    protected ConcurrentHashMap<String, ReentrantLock> reindexLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    /**
+     * Suffix of the file holding the name of the current folder of an index
+     */
+    public static final String GENERATION_SUFFIX = ".generation";
+
+    /**
+     * Commit user data key of the highest version indexed by the last full
+     * or incremental reindex
+     */
+    public static final String HIGH_WATER_MARK = "play.search.highWaterMark";
+
+    /**
+     * User data written with every commit of each index
+     */
+    protected Map<String, Map<String, String>> commitData = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * Fingerprints written and not yet visible to the searcher, per index
+     */
+    protected ConcurrentHashMap<String, Fingerprints> fingerprints = new ConcurrentHashMap<String, Fingerprints>();
+
+    /**
+     * Lucene directory of each index folder, per play.search.directory
+     */
+    protected DirectoryFactory directories = new DirectoryFactory();
+
+    /**
+     * Separates the name of a sharded index from the number of a shard, each
+     * shard being stored as an index named <index>#<shard>
+     */
+    public static final String SHARD_SEPARATOR = "#";
+
+    /**
+     * Searcher on the current shards of each sharded index
+     */
+    protected ConcurrentHashMap<String, ShardedSearcher> shardedSearchers = new ConcurrentHashMap<String, ShardedSearcher>();
+
+    /**
+     * Shard count of the indexes configured with play.search.shards.<index>,
+     * read by start()
+     */
+    protected volatile Map<String, Integer> shardCounts = Collections.emptyMap();
+
+    protected volatile int defaultShardCount = 1;
+
     public void unIndex(Object object) {
+        IndexOperation operation = IndexOperation.unIndex(object);
+        if (operation != null)
+            apply(operation.index, Collections.singletonList(operation));
+    }
+
+    public void index(Object object, String index) {
         try {
-            if (!(object instanceof JPABase))
-                return;
-            if (object.getClass().getAnnotation(Indexed.class) == null)
+            if (!(object instanceof JPABase)) {
+                Logger.warn("Unable to index " + object + ", unsupported class type. Only play.db.jpa.JPABase classes are supported.");
                 return;
-            JPABase jpaBase = (JPABase ) object;
-            String index = object.getClass().getName();
-            getIndexWriter(index).deleteDocuments(new Term("_docID", ConvertionUtils.getIdValueFor(jpaBase) + ""));
-            if (sync) {
-                getIndexWriter(index).commit();
-                dirtyReader(index);
             }
+            IndexOperation operation = IndexOperation.index(object, index);
+            if (operation != null)
+                apply(index, Collections.singletonList(operation));
         } catch (Exception e) {
             throw new UnexpectedException(e);
         }
     }
 
-    public void index(Object object, String index) {
-        try {
-            if (!(object instanceof JPABase)) {
-                Logger.warn("Unable to index " + object + ", unsupported class type. Only play.db.jpa.JPABase classes are supported.");
-                return;
+    /**
+     * Writes a batch of operations, routed to the shards of the index if it
+     * is sharded
+     */
+    public void apply(String index, List<IndexOperation> operations) {
+        List<String> shards = getShards(index);
+        if (shards.size() == 1) {
+            write(index, operations);
+            return;
+        }
+        Map<String, List<IndexOperation>> byShard = new HashMap<String, List<IndexOperation>>();
+        for (IndexOperation operation : operations) {
+            String shard = shards.get(getShard(operation.id, shards.size()));
+            List<IndexOperation> batch = byShard.get(shard);
+            if (batch == null) {
+                batch = new ArrayList<IndexOperation>();
+                byShard.put(shard, batch);
             }
-            JPABase jpaABase = (JPABase ) object;
-            Document document = ConvertionUtils.toDocument(object);
-            if (document == null)
-                return;
-            getIndexWriter(index).deleteDocuments(new Term("_docID", ConvertionUtils.getIdValueFor(jpaABase) + ""));
-            getIndexWriter(index).addDocument(document);
-            if (sync) {
-                getIndexWriter(index).commit();
-                dirtyReader(index);
-            } else {
-                if (getIndexWriter(index).ramSizeInBytes() > 1024 * 1024 * 48) {
-                    getIndexWriter(index).commit();
-                    dirtyReader(index);
+            batch.add(operation);
+        }
+        for (Map.Entry<String, List<IndexOperation>> batch : byShard.entrySet()) {
+            write(batch.getKey(), batch.getValue());
+        }
+    }
+
+    /**
+     * @return the number of shards of an index: play.search.shards.<index>,
+     *         or else play.search.shards, 1 by default. A shard is never
+     *         sharded itself.
+     */
+    protected int getShardCount(String name) {
+        if (name.contains(SHARD_SEPARATOR))
+            return 1;
+        Integer count = shardCounts.get(name);
+        return count != null ? count : defaultShardCount;
+    }
+
+    /**
+     * Reads play.search.shards and play.search.shards.<index>
+     */
+    protected void readShardCounts() {
+        String prefix = "play.search.shards.";
+        defaultShardCount = Math.max(1, Integer.parseInt(Play.configuration.getProperty("play.search.shards", "1").trim()));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Object name : Play.configuration.keySet()) {
+            String key = name.toString();
+            if (key.startsWith(prefix))
+                counts.put(key.substring(prefix.length()), Math.max(1, Integer.parseInt(Play.configuration.getProperty(key).trim())));
+        }
+        shardCounts = counts;
+    }
+
+    /**
+     * @return the names of the indexes holding the documents of an index:
+     *         the index itself, or its shards
+     */
+    protected List<String> getShards(String name) {
+        int count = getShardCount(name);
+        if (count == 1)
+            return Collections.singletonList(name);
+        List<String> shards = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(name + SHARD_SEPARATOR + i);
+        }
+        return shards;
+    }
+
+    /**
+     * @return the shard of a document id, stable as long as the shard count
+     *         does not change
+     */
+    protected static int getShard(String id, int count) {
+        return (id.hashCode() & 0x7fffffff) % count;
+    }
+
+    /**
+     * Writes a batch of operations on one index (or shard), then commits and
+     * reopens once for the whole batch. A document is replaced in one
+     * updateDocument call, and not written at all if its fingerprint is the
+     * one already indexed.
+     */
+    protected void write(String index, List<IndexOperation> operations) {
+        if (operations.isEmpty())
+            return;
+        ReadWriteLock lock = getIndexLock(index);
+        lock.readLock().lock();
+        IndexSearcher searcher = null;
+        try {
+            IndexWriter writer = getIndexWriter(index);
+            OnlineRebuild rebuild = onlineRebuilds.get(index);
+            Fingerprints fingerprints = getFingerprints(index);
+            long generation = 0;
+            int written = 0;
+            for (IndexOperation operation : operations) {
+                synchronized (fingerprints.lock(operation.id)) {
+                    String fingerprint = operation.isDelete() ? null : operation.document.get(Fingerprints.FIELD);
+                    if (fingerprint != null) {
+                        String indexed;
+                        while (true) {
+                            // a reopen since the searcher was acquired may
+                            // have dropped writes it does not see
+                            if (searcher == null || generation != fingerprints.generation()) {
+                                if (searcher != null)
+                                    releaseIndexSearcher(index, searcher);
+                                searcher = null;
+                                generation = fingerprints.generation();
+                                searcher = acquireIndexSearcher(index);
+                            }
+                            indexed = fingerprints.get(searcher.getIndexReader(), operation.id);
+                            if (generation == fingerprints.generation())
+                                break;
+                        }
+                        if (fingerprint.equals(indexed))
+                            continue;
+                    }
+                    Term id = new Term("_docID", operation.id);
+                    if (operation.isDelete())
+                        writer.deleteDocuments(id);
+                    else
+                        writer.updateDocument(id, operation.document);
+                    fingerprints.written(operation.id, fingerprint);
+                    if (rebuild != null)
+                        rebuild.apply(operation);
+                    written++;
                 }
             }
+            if (written < operations.size())
+                Logger.trace("%s unchanged documents not rewritten in %s", operations.size() - written, index);
+            if (written > 0)
+                afterWrite(index);
         } catch (Exception e) {
             throw new UnexpectedException(e);
+        } finally {
+            if (searcher != null)
+                releaseIndexSearcher(index, searcher);
+            lock.readLock().unlock();
+        }
+    }
+
+    protected Fingerprints getFingerprints(String name) {
+        Fingerprints result = fingerprints.get(name);
+        if (result == null) {
+            fingerprints.putIfAbsent(name, new Fingerprints());
+            result = fingerprints.get(name);
+        }
+        return result;
+    }
+
+    /**
+     * Lock held to open, swap or close the writer and searchers of one index
+     */
+    protected Object getOpenLock(String name) {
+        Object lock = openLocks.get(name);
+        if (lock == null) {
+            openLocks.putIfAbsent(name, new Object());
+            lock = openLocks.get(name);
+        }
+        return lock;
+    }
+
+    protected ReadWriteLock getIndexLock(String name) {
+        ReadWriteLock lock = indexLocks.get(name);
+        if (lock == null) {
+            indexLocks.putIfAbsent(name, new ReentrantReadWriteLock());
+            lock = indexLocks.get(name);
+        }
+        return lock;
+    }
+
+    protected ReentrantLock getReindexLock(String name) {
+        ReentrantLock lock = reindexLocks.get(name);
+        if (lock == null) {
+            reindexLocks.putIfAbsent(name, new ReentrantLock());
+            lock = reindexLocks.get(name);
+        }
+        return lock;
+    }
+
+    /**
+     * @return the current folder of an index: the one named in its
+     *         generation pointer once rebuilt, or else the folder named after
+     *         the index
+     */
+    protected File getIndexFolder(String name) {
+        File pointer = new File(DATA_PATH, name + GENERATION_SUFFIX);
+        if (pointer.exists()) {
+            String folder = IO.readContentAsString(pointer).trim();
+            if (folder.length() > 0)
+                return new File(DATA_PATH, folder);
+        }
+        return new File(DATA_PATH, name);
+    }
+
+    /**
+     * Points the generation pointer of an index to folder. The pointer is
+     * replaced by a rename, so it is never seen half written.
+     */
+    protected void setIndexFolder(String name, File folder) throws IOException {
+        File pointer = new File(DATA_PATH, name + GENERATION_SUFFIX);
+        File tmp = new File(DATA_PATH, name + GENERATION_SUFFIX + ".tmp");
+        IO.writeContent(folder.getName(), tmp);
+        if (!tmp.renameTo(pointer)) {
+            // cannot rename over an existing file on some platforms
+            pointer.delete();
+            if (!tmp.renameTo(pointer))
+                throw new IOException("Could not update " + pointer);
+        }
+    }
+
+    protected IndexWriter openWriter(String name, File root, boolean create) throws IOException {
+        IndexWriter writer = new IndexWriter(directories.open(name, root), Search.getAnalyser(), create, MaxFieldLength.UNLIMITED);
+        if (nrt && (IdCache.isEnabled() || SortCache.isEnabled())) {
+            final List<SortField> sortFields = getWarmedSortFields(name);
+            writer.setMergedSegmentWarmer(new IndexReaderWarmer() {
+                public void warm(IndexReader reader) throws IOException {
+                    if (IdCache.isEnabled())
+                        new IdCache(reader).warm();
+                    if (SortCache.isEnabled())
+                        SortCache.warm(reader, sortFields);
+                }
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * @return the sorts to load when a reader of an index is opened: those on
+     *         the fields its class declares sortable
+     */
+    protected List<SortField> getWarmedSortFields(String name) {
+        if (!SortCache.isEnabled())
+            return Collections.emptyList();
+        if (name.contains(SHARD_SEPARATOR))
+            name = name.substring(0, name.indexOf(SHARD_SEPARATOR));
+        ApplicationClass applicationClass = Play.classes.getApplicationClass(name);
+        if (applicationClass == null)
+            return Collections.emptyList();
+        return ClassMapping.of(applicationClass.javaClass).warmedSortFields;
+    }
+
+    /**
+     * Makes a write visible according to the sync and nrt settings. In nrt
+     * mode the commit is left to the periodic committer.
+     */
+    protected void afterWrite(String index) throws IOException {
+        if (nrt) {
+            uncommitted.put(index, Boolean.TRUE);
+            if (sync)
+                dirtyReader(index);
+            return;
+        }
+        if (sync) {
+            commit(index);
+            dirtyReader(index);
+        } else {
+            if (getIndexWriter(index).ramSizeInBytes() > 1024 * 1024 * 48) {
+                commit(index);
+                dirtyReader(index);
+            }
+        }
+    }
+
+    /**
+     * Commits an index with its commit user data, so that the data survives
+     * commits made for other reasons. The fingerprints of the committed
+     * writes are then dropped by the next reopen, even outside nrt mode.
+     */
+    protected void commit(String name) throws IOException {
+        IndexWriter writer = getIndexWriter(name);
+        Fingerprints pending = getFingerprints(name);
+        synchronized (pending.commitLock()) {
+            pending.committing();
+            Map<String, String> data = commitData.get(name);
+            if (data == null)
+                writer.commit();
+            else
+                writer.commit(data);
+            pending.committed();
+        }
+    }
+
+    /**
+     * Commits the indexes written since the last commit, used in nrt mode
+     */
+    public void commitPending() {
+        for (String name : uncommitted.keySet()) {
+            // a deleted index is not opened again
+            ReadWriteLock lock = getIndexLock(name);
+            lock.readLock().lock();
+            try {
+                if (uncommitted.remove(name) == null || !indexWriters.containsKey(name))
+                    continue;
+                commit(name);
+                if (!sync)
+                    dirtyReader(name);
+            } catch (Exception e) {
+                uncommitted.put(name, Boolean.TRUE);
+                Logger.error(e, "Could not commit index %s", name);
+            } finally {
+                lock.readLock().unlock();
+            }
         }
     }
     
+    /**
+     * @deprecated the returned searcher may be closed by a reopen while in
+     *             use, use acquireIndexSearcher and releaseIndexSearcher
+     */
+    @Deprecated
     public IndexSearcher getIndexSearcher(String name) {
+        // not held: only the searcher manager keeps it open, until the next
+        // reopen
+        IndexSearcher searcher = acquireIndexSearcher(name);
+        releaseIndexSearcher(name, searcher);
+        return searcher;
+    }
+
+    public IndexSearcher acquireIndexSearcher(String name) {
+        if (getShardCount(name) > 1)
+            throw new UnexpectedException("Index " + name + " is sharded, use acquireSearcher");
+        return getSearcherManager(name).acquire();
+    }
+
+    /**
+     * @return the searcher of an index, or a searcher over all its shards
+     */
+    public Searcher acquireSearcher(String name) {
+        List<String> shards = getShards(name);
+        if (shards.size() == 1)
+            return acquireIndexSearcher(name);
+        IndexSearcher[] searchers = new IndexSearcher[shards.size()];
         try {
-            if (!indexSearchers.containsKey(name)) {
-                synchronized (this) {
-                    File root = new File(DATA_PATH, name);
-                    if (!root.exists())
+            for (int i = 0; i < searchers.length; i++) {
+                searchers[i] = acquireIndexSearcher(shards.get(i));
+            }
+            // no lock: the cached searcher is replaced once the shards reopen,
+            // a query racing on older shards just uses its own
+            ShardedSearcher searcher = shardedSearchers.get(name);
+            if (searcher != null && searcher.searches(searchers))
+                return searcher;
+            ShardedSearcher created = new ShardedSearcher(searchers, shardSearches);
+            if (searcher == null)
+                shardedSearchers.putIfAbsent(name, created);
+            else
+                shardedSearchers.replace(name, searcher, created);
+            return created;
+        } catch (Exception e) {
+            for (int i = 0; i < searchers.length; i++) {
+                if (searchers[i] != null)
+                    releaseIndexSearcher(shards.get(i), searchers[i]);
+            }
+            throw new UnexpectedException("Cannot open the shards of " + name, e);
+        }
+    }
+
+    public void releaseSearcher(String name, Searcher searcher) {
+        if (!(searcher instanceof ShardedSearcher)) {
+            releaseIndexSearcher(name, (IndexSearcher) searcher);
+            return;
+        }
+        ShardedSearcher sharded = (ShardedSearcher) searcher;
+        List<String> shards = getShards(name);
+        for (int i = 0; i < sharded.shards.length; i++) {
+            releaseIndexSearcher(shards.get(i), sharded.shards[i]);
+        }
+    }
+
+    public void releaseIndexSearcher(String name, IndexSearcher searcher) {
+        try {
+            // the searcher may come from a manager swapped or closed since,
+            // releasing it must not open the index again
+            SearcherManager.release(searcher);
+        } catch (IOException e) {
+            throw new UnexpectedException("Cannot release searcher", e);
+        }
+    }
+
+    protected SearcherManager getSearcherManager(String name) {
+        SearcherManager manager = searcherManagers.get(name);
+        if (manager != null)
+            return manager;
+        try {
+            synchronized (getOpenLock(name)) {
+                manager = searcherManagers.get(name);
+                if (manager == null) {
+                    File root = getIndexFolder(name);
+                    if (!directories.exists(name, root))
                         getIndexWriter(name);
-                    IndexSearcher reader = new IndexSearcher(FSDirectory.open(root));
-                    reader.setDefaultFieldSortScoring(true, true);
-                    indexSearchers.put(name, reader);
+                    IndexReader reader = nrt ? getIndexWriter(name).getReader() : IndexReader.open(directories.open(name, root), true);
+                    manager = new SearcherManager(reader, getWarmedSortFields(name), warmer);
+                    searcherManagers.put(name, manager);
                 }
+                return manager;
             }
-            return indexSearchers.get(name);
         } catch (Exception e) {
             throw new UnexpectedException("Cannot open index", e);
         }
     }
 
     /**
-     * Used to synchronize reads after writes
+     * Stops handing out searchers for an index. Searchers in use are closed
+     * when released.
+     */
+    protected void closeSearcherManager(String name) throws IOException {
+        SearcherManager manager = searcherManagers.remove(name);
+        if (manager != null)
+            manager.close();
+    }
+
+    /**
+     * Used to synchronize reads after writes. The reader is reopened
+     * incrementally: only new segments are loaded, unchanged segments (and
+     * their field caches) are shared with the previous reader. In nrt mode
+     * the new reader comes from the IndexWriter and sees uncommitted changes.
      *
      * @param name of the reader to be reopened
      */
     public void dirtyReader(String name) {
-        synchronized (this) {
-            try {
-                if (indexSearchers.containsKey(name)) {
-                    IndexReader rd = indexSearchers.get(name).getIndexReader();
-                    indexSearchers.get(name).close();
-                    indexSearchers.remove(name);
-                }
-            } catch (Exception e) {
-                throw new UnexpectedException("Can't reopen reader", e);
+        if (getShardCount(name) > 1) {
+            for (String shard : getShards(name)) {
+                dirtyReader(shard);
+            }
+            return;
+        }
+        SearcherManager manager = searcherManagers.get(name);
+        if (manager == null)
+            return;
+        try {
+            // one reopen at a time, so that the pending fingerprints are
+            // dropped only once a reader sees them: all of them in nrt mode,
+            // the committed ones otherwise
+            synchronized (manager) {
+                Fingerprints pending = getFingerprints(name);
+                pending.reopening(nrt);
+                manager.maybeReopen();
+                pending.reopened();
             }
+        } catch (Exception e) {
+            throw new UnexpectedException("Can't reopen reader", e);
         }
     }
 
     private IndexWriter getIndexWriter(String name) {
+        IndexWriter writer = indexWriters.get(name);
+        if (writer != null)
+            return writer;
         try {
-            if (!indexWriters.containsKey(name)) {
-                synchronized (this) {
-                    File root = new File(DATA_PATH, name);
-                    if (!root.exists())
-                        root.mkdirs();
-                    if (new File(root, "write.lock").exists())
-                        new File(root, "write.lock").delete();
-                    IndexWriter writer = new IndexWriter(FSDirectory.open(root), Search.getAnalyser(), MaxFieldLength.UNLIMITED);
+            synchronized (getOpenLock(name)) {
+                writer = indexWriters.get(name);
+                if (writer == null) {
+                    File root = getIndexFolder(name);
+                    if (!directories.isInMemory(name)) {
+                        if (!root.exists())
+                            root.mkdirs();
+                        if (new File(root, "write.lock").exists())
+                            new File(root, "write.lock").delete();
+                    }
+                    Directory directory = directories.open(name, root);
+                    boolean exists = IndexReader.indexExists(directory);
+                    commitData.remove(name);
+                    if (exists) {
+                        Map<String, String> data = IndexReader.getCommitUserData(directory);
+                        if (data != null && !data.isEmpty())
+                            commitData.put(name, new HashMap<String, String>(data));
+                    }
+                    writer = openWriter(name, root, !exists);
                     indexWriters.put(name, writer);
                 }
+                return writer;
             }
-            return indexWriters.get(name);
         } catch (Exception e) {
             throw new UnexpectedException(e);
         }
     }
 
     public void rebuildAllIndexes() throws Exception {
-        stop();
-        File fl = new File(DATA_PATH);
-        Files.deleteDirectory(fl);
-        fl.mkdirs();
+        // the committer keeps running for the rebuilt indexes
+        closeIndexes();
+        deleteAllFolders();
         List<ApplicationClass> classes = Play.classes.getAnnotatedClasses(Indexed.class);
+        int threads = Integer.parseInt(Play.configuration.getProperty("play.search.rebuild.threads", "2"));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), daemonThreads("search-rebuild"));
+        try {
+            // each rebuild runs as a job to get its own persistence context
+            for (ApplicationClass applicationClass : classes) {
+                final String name = applicationClass.javaClass.getName();
+                rebuilds.remove(name);
+                pool.submit((Callable<Void>) new Job<Void>() {
+                    @Override
+                    public void doJob() {
+                        rebuild(name);
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        List<String> failed = new ArrayList<String>();
         for (ApplicationClass applicationClass : classes) {
-            rebuild(applicationClass.javaClass.getName());
+            String name = applicationClass.javaClass.getName();
+            RebuildProgress progress = rebuilds.get(name);
+            Logger.info("  %s: %s", name, progress != null ? progress : "not started");
+            if (progress == null || progress.isFailed())
+                failed.add(name);
         }
+        if (!failed.isEmpty())
+            throw new UnexpectedException("Rebuild failed for " + failed);
         Logger.info("Rebuild index finished");
     }
 
+    protected static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     public List<ManagedIndex> listIndexes() {
         List<ManagedIndex> indexes = new ArrayList<ManagedIndex>();
         List<ApplicationClass> classes = Play.classes.getAnnotatedClasses(Indexed.class);
         for (ApplicationClass applicationClass : classes) {
             ManagedIndex index = new ManagedIndex();
             index.name = applicationClass.javaClass.getName();
-            index.optimized = getIndexSearcher(index.name).getIndexReader().isOptimized();
-            index.documentCount = getIndexSearcher(index.name).getIndexReader().numDocs();
+            index.optimized = true;
+            index.directory = directories.getStrategy(index.name);
+            List<String> shards = getShards(index.name);
+            index.shards = shards.size();
+            for (String shard : shards) {
+                IndexSearcher searcher = acquireIndexSearcher(shard);
+                try {
+                    index.optimized &= searcher.getIndexReader().isOptimized();
+                    index.documentCount += searcher.getIndexReader().numDocs();
+                } finally {
+                    releaseIndexSearcher(shard, searcher);
+                }
+                index.memoryBytes += directories.getMemoryBytes(getIndexFolder(shard));
+            }
             index.jpaCount =  (Long ) JPA.em().createQuery("select count (*) from " + applicationClass.javaClass.getCanonicalName()+ ")").getSingleResult();
+            index.rebuild = rebuilds.get(index.name);
             indexes.add(index);
         }
         return indexes;
@@ -171,88 +737,580 @@ public class FilesystemStore implements Store {
         Logger.trace("Search module repository is in " + DATA_PATH);
         sync = Boolean.parseBoolean(Play.configuration.getProperty("play.search.synch", "true"));
         Logger.trace("Write operations sync: " + sync);
+        // writes reopen on the calling thread in synch mode
+        if (sync)
+            warmer = Executors.newSingleThreadExecutor(daemonThreads("search-warmer"));
+        readShardCounts();
+        shardSearches = Executors.newCachedThreadPool(daemonThreads("search-shards"));
+        nrt = Boolean.parseBoolean(Play.configuration.getProperty("play.search.nrt", "false"));
+        commitInterval = Time.parseDuration(Play.configuration.getProperty("play.search.nrt.commitInterval", "10s"));
+        Logger.trace("Near-real-time mode: " + nrt + ", commit interval: " + commitInterval + "s");
+        if (nrt && commitInterval <= 0)
+            Logger.warn("play.search.nrt.commitInterval is %s: no periodic commit, changes are committed by optimize, rebuilds and on stop", commitInterval);
+        if (nrt && commitInterval > 0) {
+            committer = Executors.newSingleThreadScheduledExecutor(daemonThreads("search-committer"));
+            committer.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    commitPending();
+                }
+            }, commitInterval, commitInterval, TimeUnit.SECONDS);
+        }
     }
 
     public void stop() throws Exception {
+        if (committer != null) {
+            committer.shutdown();
+            committer = null;
+        }
+        closeIndexes();
+        if (warmer != null) {
+            warmer.shutdown();
+            warmer = null;
+        }
+        if (shardSearches != null) {
+            shardSearches.shutdown();
+            shardSearches = null;
+        }
+    }
+
+    /**
+     * Closes the writers, searchers and directories of all the indexes,
+     * which are opened again on next use
+     */
+    protected void closeIndexes() throws Exception {
+        for (SearcherManager manager : searcherManagers.values()) {
+            manager.close();
+        }
         for (IndexWriter writer : indexWriters.values()) {
             writer.close();
         }
-        for (IndexSearcher searcher : indexSearchers.values()) {
-            searcher.close();
-        }
+        shardedSearchers.clear();
         indexWriters.clear();
-        indexSearchers.clear();
+        searcherManagers.clear();
+        uncommitted.clear();
+        fingerprints.clear();
+        directories.closeAll();
     }
 
     public void optimize(String name) {
         try {
-            getIndexWriter(name).optimize(true);
-            getIndexWriter(name).commit();
-            dirtyReader(name);
+            for (String shard : getShards(name)) {
+                getIndexWriter(shard).optimize(true);
+                commit(shard);
+                dirtyReader(shard);
+            }
         } catch (Exception e) {
             throw new UnexpectedException(e);
         }
     }
 
+    /**
+     * Rebuilds an index from the database into a new folder while the current
+     * one keeps serving queries. Writes made meanwhile are applied to both.
+     * Once done, the new folder becomes the current one: the generation
+     * pointer, writer and searchers are swapped at once, queries in flight
+     * finish on the old searcher. Rows are read in pages of
+     * play.search.rebuild.pageSize ordered by id, and the persistence context
+     * is cleared after each page. If the rebuild fails, the new folder is
+     * deleted and the current index is left untouched. The shards of a
+     * sharded index are rebuilt together, in one pass over the table.
+     */
     public void rebuild(String name) {
-        String id = UUID.randomUUID().toString();
-        File oldFolder = new File(DATA_PATH, name);
-        File newFolder = new File(DATA_PATH, name + id);
-        Class cl = Play.classes.getApplicationClass(name).javaClass;
-        List<JPABase> objects = JPA.em().createQuery("select e from " + cl.getCanonicalName() + " as e").getResultList();
-        String index = cl.getName() + id;
-        IndexWriter indexWriter = getIndexWriter(index);
+        Class<?> cl = Play.classes.getApplicationClass(name).javaClass;
+        RebuildProgress progress = new RebuildProgress(name, countObjects(cl));
+        Map<String, String> data = new HashMap<String, String>();
+        String mark = getMaxVersion(cl);
+        if (mark != null)
+            data.put(HIGH_WATER_MARK, mark);
+        List<String> shards = getShards(name);
+        OnlineRebuild[] rebuild = new OnlineRebuild[shards.size()];
+        long generation = System.currentTimeMillis();
+        boolean success = false;
         try {
-            for (JPABase jpaBase : objects) {
-                Document document = ConvertionUtils.toDocument(jpaBase);
-                if (document == null)
-                    return;
-                indexWriter.addDocument(document);
+            for (int i = 0; i < rebuild.length; i++) {
+                File newFolder = new File(DATA_PATH, shards.get(i) + "." + generation);
+                OnlineRebuild shard = new OnlineRebuild(newFolder, openWriter(shards.get(i), newFolder, true));
+                if (onlineRebuilds.putIfAbsent(shards.get(i), shard) != null) {
+                    discard(shards.get(i), shard);
+                    throw new UnexpectedException("Index " + name + " is already being rebuilt");
+                }
+                rebuild[i] = shard;
             }
-
-            getIndexWriter(index).commit();
-            dirtyReader(index);
-            getIndexSearcher(name).close();
-            indexSearchers.remove(name);
-            getIndexWriter(name).close();
-            indexWriters.remove(name);
-            Files.deleteDirectory(oldFolder);
-            newFolder.renameTo(oldFolder);
-        } catch (IOException e) {
+            rebuilds.put(name, progress);
+            double ramBufferSizeMB = rebuild[0].writer.getRAMBufferSizeMB();
+            int mergeFactor = rebuild[0].writer.getMergeFactor();
+            for (OnlineRebuild shard : rebuild) {
+                shard.writer.setRAMBufferSizeMB(Double.parseDouble(Play.configuration.getProperty("play.search.rebuild.ramBufferSizeMB", "128")));
+                shard.writer.setMergeFactor(Integer.parseInt(Play.configuration.getProperty("play.search.rebuild.mergeFactor", "30")));
+            }
+            indexObjects(cl, rebuild, progress);
+            for (OnlineRebuild shard : rebuild) {
+                shard.writer.setRAMBufferSizeMB(ramBufferSizeMB);
+                shard.writer.setMergeFactor(mergeFactor);
+                shard.writer.commit(data);
+            }
+            for (int i = 0; i < rebuild.length; i++) {
+                swap(shards.get(i), rebuild[i], data);
+                rebuild[i] = null;
+                dirtyReader(shards.get(i));
+            }
+            success = true;
+            Logger.info("Index %s rebuilt: %s", name, progress);
+        } catch (UnexpectedException e) {
+            throw e;
+        } catch (Exception e) {
             throw new UnexpectedException(e);
+        } finally {
+            progress.finish(success);
+            for (int i = 0; i < rebuild.length; i++) {
+                if (rebuild[i] != null) {
+                    onlineRebuilds.remove(shards.get(i));
+                    discard(shards.get(i), rebuild[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the new folder of a rebuilt index (or shard) the current one:
+     * the generation pointer, writer and searchers are swapped at once.
+     */
+    protected void swap(String name, OnlineRebuild rebuild, Map<String, String> data) throws IOException {
+        // opened and warmed before the swap, refreshed right after it
+        SearcherManager manager = new SearcherManager(nrt ? rebuild.writer.getReader() : IndexReader.open(rebuild.writer.getDirectory(), true), getWarmedSortFields(name), warmer);
+        ReadWriteLock lock = getIndexLock(name);
+        lock.writeLock().lock();
+        try {
+            synchronized (getOpenLock(name)) {
+                onlineRebuilds.remove(name);
+                rebuild.writer.commit(data);
+                commitData.put(name, data);
+                File oldFolder = getIndexFolder(name);
+                setIndexFolder(name, rebuild.folder);
+                IndexWriter oldWriter = indexWriters.put(name, rebuild.writer);
+                SearcherManager oldManager = searcherManagers.put(name, manager);
+                if (oldManager != null)
+                    oldManager.close();
+                if (oldWriter != null)
+                    oldWriter.close();
+                directories.close(oldFolder);
+                if (!deleteFolder(name, oldFolder))
+                    Logger.warn("Could not delete the previous folder of index %s: %s", name, oldFolder);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes and deletes the new folder of a failed rebuild
+     */
+    protected void discard(String name, OnlineRebuild rebuild) {
+        try {
+            rebuild.writer.close();
         } catch (Exception e) {
+            Logger.warn(e, "Could not close the writer of the failed rebuild of %s", name);
+        }
+        directories.close(rebuild.folder);
+        deleteFolder(name, rebuild.folder);
+    }
+
+    /**
+     * Deletes an index folder from the disk, unless the index is kept in
+     * memory
+     *
+     * @return false if the folder could not be deleted
+     */
+    protected boolean deleteFolder(String name, File folder) {
+        if (directories.isInMemory(name) || !folder.exists())
+            return true;
+        return Files.deleteDirectory(folder);
+    }
+
+    /**
+     * Deletes every index folder, before all the indexes are rebuilt
+     */
+    protected void deleteAllFolders() {
+        File fl = new File(DATA_PATH);
+        Files.deleteDirectory(fl);
+        fl.mkdirs();
+    }
+
+    /**
+     * Forgets the folder set by setIndexFolder, once the index is deleted
+     */
+    protected void clearIndexFolder(String name) {
+        new File(DATA_PATH, name + GENERATION_SUFFIX).delete();
+    }
+
+    /**
+     * Reindexes only the objects whose version field is above the high-water
+     * mark of the last reindex, and unindexes the objects no longer in the
+     * database. The new mark is stored in the commit user data of the index.
+     * Does nothing if the index is already being reindexed, by the
+     * scheduled job or the console: both runs would read the same mark.
+     */
+    @SuppressWarnings("unchecked")
+    public void reindexChanged(String name) {
+        Class<?> cl = Play.classes.getApplicationClass(name).javaClass;
+        java.lang.reflect.Field versionField = ClassMapping.of(cl).versionField;
+        if (versionField == null)
+            throw new UnexpectedException("Index " + name + " has no @Indexed(versionField), it can only be fully rebuilt");
+        ReentrantLock lock = getReindexLock(name);
+        if (!lock.tryLock()) {
+            Logger.info("Index %s is already being reindexed, skipped", name);
+            return;
+        }
+        RebuildProgress progress = null;
+        try {
+            // the shards share their mark, unless one was lost
+            List<String> shards = getShards(name);
+            Map<String, String> data = null;
+            String oldMark = null;
+            for (int i = 0; i < shards.size(); i++) {
+                getIndexWriter(shards.get(i));
+                Map<String, String> shardData = commitData.get(shards.get(i));
+                String shardMark = shardData != null ? shardData.get(HIGH_WATER_MARK) : null;
+                if (i == 0) {
+                    data = shardData;
+                    oldMark = shardMark;
+                } else if (oldMark != null && !oldMark.equals(shardMark)) {
+                    oldMark = null;
+                }
+            }
+            Object mark = decodeVersion(versionField.getType(), oldMark);
+            String newMark = getMaxVersion(cl);
+            if (newMark == null)
+                newMark = oldMark;
+
+            String version = "e." + versionField.getName();
+            String idField = ConvertionUtils.getIdField(cl).getName();
+            String where = " where " + version + " <= :newMark" + (mark != null ? " and " + version + " > :mark" : "");
+            String count = "select count(e) from " + cl.getCanonicalName() + " as e" + where;
+            String select = "select e from " + cl.getCanonicalName() + " as e" + where;
+            javax.persistence.Query countQuery = JPA.em().createQuery(count).setParameter("newMark", decodeVersion(versionField.getType(), newMark));
+            if (mark != null)
+                countQuery.setParameter("mark", mark);
+            progress = new RebuildProgress(name, newMark == null ? 0 : (Long) countQuery.getSingleResult());
+            rebuilds.put(name, progress);
+
+            int pageSize = Integer.parseInt(Play.configuration.getProperty("play.search.rebuild.pageSize", "1000"));
+            Object last = null;
+            while (newMark != null) {
+                javax.persistence.Query query = JPA.em().createQuery(select + (last != null ? " and e." + idField + " > :last" : "") + " order by e." + idField);
+                query.setParameter("newMark", decodeVersion(versionField.getType(), newMark));
+                if (mark != null)
+                    query.setParameter("mark", mark);
+                if (last != null)
+                    query.setParameter("last", last);
+                List<JPABase> page = query.setMaxResults(pageSize).getResultList();
+                List<IndexOperation> operations = new ArrayList<IndexOperation>(page.size());
+                for (JPABase jpaBase : page) {
+                    IndexOperation operation = IndexOperation.index(jpaBase, name);
+                    if (operation != null)
+                        operations.add(operation);
+                }
+                apply(name, operations);
+                progress.add(page.size());
+                if (page.size() < pageSize)
+                    break;
+                last = ConvertionUtils.getIdValueFor(page.get(page.size() - 1));
+                JPA.em().clear();
+            }
+            int removed = unIndexDeleted(name, cl);
+
+            Map<String, String> newData = data != null ? new HashMap<String, String>(data) : new HashMap<String, String>();
+            if (newMark != null)
+                newData.put(HIGH_WATER_MARK, newMark);
+            for (String shard : shards) {
+                commitData.put(shard, newData);
+                commit(shard);
+                dirtyReader(shard);
+            }
+            progress.finish(true);
+            Logger.info("Index %s reindexed incrementally: %s, %s removed", name, progress, removed);
+        } catch (Exception e) {
+            if (progress != null)
+                progress.finish(false);
             throw new UnexpectedException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes from the index the objects no longer in the database. Objects
+     * deleted through JPA are already unindexed by the objectDeleted event,
+     * so the ids of the index are only scanned when it holds more documents
+     * than the table has rows (play.search.incremental.scanDeletes=auto, the
+     * default), always (true) or never (false).
+     *
+     * @return the number of ids removed
+     */
+    @SuppressWarnings("unchecked")
+    protected int unIndexDeleted(String name, Class<?> cl) throws IOException {
+        String scanDeletes = Play.configuration.getProperty("play.search.incremental.scanDeletes", "auto").trim();
+        if (scanDeletes.equals("false"))
+            return 0;
+        if (!scanDeletes.equals("true")) {
+            long indexed = 0;
+            for (String shard : getShards(name)) {
+                commit(shard);
+                dirtyReader(shard);
+                IndexSearcher searcher = acquireIndexSearcher(shard);
+                try {
+                    indexed += searcher.getIndexReader().numDocs();
+                } finally {
+                    releaseIndexSearcher(shard, searcher);
+                }
+            }
+            long rows = (Long) JPA.em().createQuery("select count(e) from " + cl.getCanonicalName() + " as e").getSingleResult();
+            if (indexed <= rows) {
+                Logger.trace("Index %s holds %s documents for %s rows, deleted ids not scanned", name, indexed, rows);
+                return 0;
+            }
+        }
+        int batchSize = Integer.parseInt(Play.configuration.getProperty("play.search.fetch.batchSize", "500"));
+        String jpql = "select e." + ConvertionUtils.getIdField(cl).getName() + " from " + cl.getCanonicalName() + " as e where e."
+                        + ConvertionUtils.getIdField(cl).getName() + " in (:ids)";
+        int removed = 0;
+        for (String shard : getShards(name)) {
+            removed += unIndexDeleted(shard, cl, jpql, batchSize);
+        }
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int unIndexDeleted(String name, Class<?> cl, String jpql, int batchSize) throws IOException {
+        int removed = 0;
+        IndexSearcher searcher = acquireIndexSearcher(name);
+        try {
+            TermEnum terms = searcher.getIndexReader().terms(new Term("_docID", ""));
+            try {
+                List<String> batch = new ArrayList<String>(batchSize);
+                boolean more = true;
+                while (more) {
+                    Term term = terms.term();
+                    more = term != null && term.field().equals("_docID");
+                    if (more)
+                        batch.add(term.text());
+                    if (batch.size() == batchSize || (!more && !batch.isEmpty())) {
+                        List<Object> ids = new ArrayList<Object>(batch.size());
+                        for (String id : batch) {
+                            ids.add(ConvertionUtils.getIdValueFromIndex(cl, id));
+                        }
+                        Set<String> existing = new HashSet<String>();
+                        for (Object id : JPA.em().createQuery(jpql).setParameter("ids", ids).getResultList()) {
+                            existing.add(id + "");
+                        }
+                        List<IndexOperation> operations = new ArrayList<IndexOperation>();
+                        for (String id : batch) {
+                            if (!existing.contains(id))
+                                operations.add(new IndexOperation(name, id, null));
+                        }
+                        write(name, operations);
+                        removed += operations.size();
+                        batch.clear();
+                    }
+                    if (more)
+                        more = terms.next();
+                }
+            } finally {
+                terms.close();
+            }
+        } finally {
+            releaseIndexSearcher(name, searcher);
+        }
+        return removed;
+    }
+
+    /**
+     * @return the highest value of the version field of cl, encoded as
+     *         stored in the commit user data, null if the class has no
+     *         version field or no rows
+     */
+    protected String getMaxVersion(Class<?> cl) {
+        java.lang.reflect.Field versionField = ClassMapping.of(cl).versionField;
+        if (versionField == null)
+            return null;
+        Object max = JPA.em().createQuery("select max(e." + versionField.getName() + ") from " + cl.getCanonicalName() + " as e").getSingleResult();
+        if (max == null)
+            return null;
+        if (max instanceof Date)
+            return ((Date) max).getTime() + "";
+        return max + "";
+    }
+
+    protected Object decodeVersion(Class<?> type, String value) throws Exception {
+        if (value == null)
+            return null;
+        if (Timestamp.class.isAssignableFrom(type))
+            return new Timestamp(Long.parseLong(value));
+        if (Date.class.isAssignableFrom(type))
+            return new Date(Long.parseLong(value));
+        return Binder.directBind(value, type);
+    }
+
+    protected long countObjects(Class<?> cl) {
+        return (Long) JPA.em().createQuery("select count(e) from " + cl.getCanonicalName() + " as e").getSingleResult();
+    }
+
+    /**
+     * Adds every object of class cl to the rebuilt index, reading them by
+     * pages ordered by id
+     */
+    @SuppressWarnings("unchecked")
+    protected void indexObjects(Class<?> cl, OnlineRebuild[] rebuild, RebuildProgress progress) throws Exception {
+        int pageSize = Integer.parseInt(Play.configuration.getProperty("play.search.rebuild.pageSize", "1000"));
+        int threads = Integer.parseInt(Play.configuration.getProperty("play.search.rebuild.convertThreads", "1"));
+        if (threads > 1) {
+            indexObjectsInParallel(cl, rebuild, progress, pageSize, threads);
+            return;
+        }
+        String idField = ConvertionUtils.getIdField(cl).getName();
+        String select = "select e from " + cl.getCanonicalName() + " as e";
+        String order = " order by e." + idField;
+        Object last = null;
+        while (true) {
+            javax.persistence.Query query;
+            if (last == null)
+                query = JPA.em().createQuery(select + order);
+            else
+                query = JPA.em().createQuery(select + " where e." + idField + " > :last" + order).setParameter("last", last);
+            List<JPABase> page = query.setMaxResults(pageSize).getResultList();
+            for (JPABase jpaBase : page) {
+                Document document = ConvertionUtils.toDocument(jpaBase);
+                if (document != null)
+                    OnlineRebuild.add(rebuild, document);
+            }
+            progress.add(page.size());
+            if (page.size() < pageSize)
+                return;
+            last = ConvertionUtils.getIdValueFor(page.get(page.size() - 1));
+            JPA.em().clear();
         }
     }
 
+    /**
+     * Reads the ids by pages on the current thread, and hands each page to a
+     * pool of jobs that load the objects in their own persistence context,
+     * convert them and add them to the (thread safe) writer
+     */
+    @SuppressWarnings("unchecked")
+    protected void indexObjectsInParallel(final Class<?> cl, final OnlineRebuild[] rebuild, final RebuildProgress progress, int pageSize, int threads)
+                    throws Exception {
+        final String idField = ConvertionUtils.getIdField(cl).getName();
+        String select = "select e." + idField + " from " + cl.getCanonicalName() + " as e";
+        String order = " order by e." + idField;
+        final String load = "select e from " + cl.getCanonicalName() + " as e where e." + idField + " in (:ids)";
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        // at most two pages waiting per thread
+        final Semaphore pages = new Semaphore(threads * 2);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, daemonThreads("search-rebuild-" + cl.getSimpleName()));
+        try {
+            Object last = null;
+            while (failure.get() == null) {
+                javax.persistence.Query query;
+                if (last == null)
+                    query = JPA.em().createQuery(select + order);
+                else
+                    query = JPA.em().createQuery(select + " where e." + idField + " > :last" + order).setParameter("last", last);
+                final List<Object> ids = query.setMaxResults(pageSize).getResultList();
+                if (ids.isEmpty())
+                    break;
+                pages.acquire();
+                final Job<Void> job = new Job<Void>() {
+                    @Override
+                    public void doJob() throws Exception {
+                        try {
+                            List<JPABase> objects = JPA.em().createQuery(load).setParameter("ids", ids).getResultList();
+                            for (JPABase jpaBase : objects) {
+                                Document document = ConvertionUtils.toDocument(jpaBase);
+                                if (document != null)
+                                    OnlineRebuild.add(rebuild, document);
+                            }
+                            progress.add(ids.size());
+                        } catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                            throw e;
+                        }
+                    }
+                };
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            job.call();
+                        } finally {
+                            pages.release();
+                        }
+                    }
+                });
+                if (ids.size() < pageSize)
+                    break;
+                last = ids.get(ids.size() - 1);
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        }
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    public RebuildProgress getRebuildProgress(String name) {
+        return rebuilds.get(name);
+    }
+
     public void reopen(String name) {
         dirtyReader(name);
     }
 
     public void delete(String name) {
-        synchronized (this) {
-            try {
-                if (indexSearchers.containsKey(name)) {
-                    IndexReader rd = indexSearchers.get(name).getIndexReader();
-                    indexSearchers.get(name).close();
-                    indexSearchers.remove(name);
-                }
-                if (indexWriters.containsKey(name)) {
-                    indexWriters.get(name).close();
-                    indexWriters.remove(name);
-                }
-                File target = new File(DATA_PATH, name);
-                if (target.exists() && target.isDirectory())
-                    Files.deleteDirectory(target);
-            } catch (Exception e) {
-                throw new UnexpectedException("Can't reopen reader", e);
+        if (getShardCount(name) > 1) {
+            for (String shard : getShards(name)) {
+                delete(shard);
+            }
+            shardedSearchers.remove(name);
+        }
+        // waits for the writes in progress
+        ReadWriteLock lock = getIndexLock(name);
+        lock.writeLock().lock();
+        try {
+            synchronized (getOpenLock(name)) {
+                closeSearcherManager(name);
+                IndexWriter writer = indexWriters.remove(name);
+                if (writer != null)
+                    writer.close();
+                File target = getIndexFolder(name);
+                directories.close(target);
+                if (target.isDirectory())
+                    deleteFolder(name, target);
+                clearIndexFolder(name);
+                fingerprints.remove(name);
+                uncommitted.remove(name);
             }
+        } catch (Exception e) {
+            throw new UnexpectedException("Can't reopen reader", e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
     public void deleteAll() {
+        // in-memory indexes have no folder
+        for (String name : new ArrayList<String>(indexWriters.keySet())) {
+            delete(name);
+        }
         File root = new File(DATA_PATH);
         if (root.exists() && root.isDirectory()) {
+            File[] pointers = root.listFiles(new FileFilter() {
+                public boolean accept(File pathname) {
+                    return pathname.isFile() && pathname.getName().endsWith(GENERATION_SUFFIX);
+                }
+            });
+            for (File file : pointers) {
+                delete(file.getName().substring(0, file.getName().length() - GENERATION_SUFFIX.length()));
+            }
             File[] indexes = root.listFiles(new FileFilter() {
                 public boolean accept(File pathname) {
                     return pathname.isDirectory();
@@ -265,6 +1323,66 @@ public class FilesystemStore implements Store {
     }
 
     public boolean hasIndex(String name) {
-        return new File(DATA_PATH, name).exists();
+        String shard = getShards(name).get(0);
+        return directories.exists(shard, getIndexFolder(shard));
+    }
+
+    /**
+     * The new folder of an index being rebuilt online. Live writes are
+     * applied to it too, and win over the rows read by the rebuild.
+     */
+    protected static class OnlineRebuild {
+        final File folder;
+
+        final IndexWriter writer;
+
+        /**
+         * Ids written live since the rebuild started
+         */
+        final Map<String, Boolean> touched = new ConcurrentHashMap<String, Boolean>();
+
+        private final Object[] locks = new Object[64];
+
+        OnlineRebuild(File folder, IndexWriter writer) {
+            this.folder = folder;
+            this.writer = writer;
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = new Object();
+            }
+        }
+
+        private Object lock(String id) {
+            return locks[(id.hashCode() & 0x7fffffff) % locks.length];
+        }
+
+        /**
+         * Adds a document read by the rebuild to the rebuilt shard it belongs
+         * to
+         */
+        static void add(OnlineRebuild[] rebuild, Document document) throws IOException {
+            rebuild[rebuild.length == 1 ? 0 : getShard(document.get("_docID"), rebuild.length)].add(document);
+        }
+
+        /**
+         * Adds a document read by the rebuild, unless a live write already
+         * gave a fresher version of it
+         */
+        void add(Document document) throws IOException {
+            String id = document.get("_docID");
+            synchronized (lock(id)) {
+                if (!touched.containsKey(id))
+                    writer.addDocument(document);
+            }
+        }
+
+        void apply(IndexOperation operation) throws IOException {
+            synchronized (lock(operation.id)) {
+                touched.put(operation.id, Boolean.TRUE);
+                if (operation.isDelete())
+                    writer.deleteDocuments(new Term("_docID", operation.id));
+                else
+                    writer.updateDocument(new Term("_docID", operation.id), operation.document);
+            }
+        }
     }
 }
@@ -0,0 +1,233 @@
+package play.modules.search.store;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.document.Fieldable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+import play.Play;
+import play.exceptions.UnexpectedException;
+import play.libs.Codec;
+
+/**
+ * Fingerprints of the indexed values of the documents of an index, used to
+ * skip the writes that would not change a document. The fingerprint of a
+ * document is stored in it; the fingerprints written since the searcher was
+ * last reopened are kept here, since the searcher does not see them yet. A
+ * reader opened from the writer (nrt) sees every write, a reader opened on
+ * the directory only sees the committed ones, so the writes are tracked
+ * until they are committed and then until a reader is opened.
+ *
+ * @author jfp
+ */
+public class Fingerprints {
+    public static final String FIELD = "_fingerprint";
+
+    /**
+     * Pending fingerprint of a deleted document
+     */
+    private static final String DELETED = "";
+
+    private static final FieldSelector SELECTOR = new FieldSelector() {
+        public FieldSelectorResult accept(String fieldName) {
+            return FIELD.equals(fieldName) ? FieldSelectorResult.LOAD_AND_BREAK : FieldSelectorResult.NO_LOAD;
+        }
+    };
+
+    /**
+     * Written since the last commit started (or the last nrt reopen)
+     */
+    private volatile Map<String, String> current = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Written before the commit in progress started
+     */
+    private volatile Map<String, String> committing = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Committed, not visible until the next reopen
+     */
+    private volatile Map<String, String> committed = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Seen by the reopen in progress, not visible until it is done
+     */
+    private volatile Map<String, String> previous = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Number of reopens done, increased before previous is dropped: a reader
+     * acquired before the increase may no longer see the writes that
+     * previous held
+     */
+    private volatile long generation = 0;
+
+    /**
+     * Held for a whole commit, so that committed() only moves the writes the
+     * commit contains
+     */
+    private final Object commitLock = new Object();
+
+    private final Object[] locks = new Object[64];
+
+    public Fingerprints() {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    private static volatile boolean enabled = true;
+
+    /**
+     * Reads play.search.fingerprint, called by Search.init()
+     */
+    public static void configure() {
+        enabled = Boolean.parseBoolean(Play.configuration.getProperty("play.search.fingerprint", "true"));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a digest of the name and value of every field of document,
+     *         _docID and allfield excepted
+     */
+    public static String of(Document document) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (Object o : document.getFields()) {
+                Fieldable field = (Fieldable) o;
+                if (field.name().equals(IdCache.ID_FIELD) || field.name().equals("allfield") || field.name().equals(FIELD))
+                    continue;
+                String value = field.stringValue();
+                if (value == null)
+                    continue;
+                digest.update(field.name().getBytes("UTF-8"));
+                digest.update((byte) 0);
+                digest.update(value.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            return Codec.byteToHexString(digest.digest());
+        } catch (Exception e) {
+            throw new UnexpectedException(e);
+        }
+    }
+
+    /**
+     * Lock to hold while comparing and writing the document of id, so that
+     * two writes of the same object are not reordered
+     */
+    public Object lock(String id) {
+        return locks[(id.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    /**
+     * @return the fingerprint of the last write of id, from the writes not
+     *         visible yet or else from reader, null if the document is not
+     *         in the index. Only valid if generation() did not change since
+     *         reader was acquired.
+     */
+    public String get(IndexReader reader, String id) throws IOException {
+        // newest first: a write is copied to the next map before it is
+        // removed from its map
+        String fingerprint = current.get(id);
+        if (fingerprint == null)
+            fingerprint = committing.get(id);
+        if (fingerprint == null)
+            fingerprint = committed.get(id);
+        if (fingerprint == null)
+            fingerprint = previous.get(id);
+        if (fingerprint != null)
+            return DELETED.equals(fingerprint) ? null : fingerprint;
+        TermDocs docs = reader.termDocs(new Term(IdCache.ID_FIELD, id));
+        try {
+            if (!docs.next())
+                return null;
+            Document document = reader.document(docs.doc(), SELECTOR);
+            return document.get(FIELD);
+        } finally {
+            docs.close();
+        }
+    }
+
+    /**
+     * Records a write, fingerprint being null for a delete
+     */
+    public synchronized void written(String id, String fingerprint) {
+        current.put(id, fingerprint != null ? fingerprint : DELETED);
+    }
+
+    public Object commitLock() {
+        return commitLock;
+    }
+
+    /**
+     * Called before a commit, holding commitLock(): the writes made so far
+     * are in the commit
+     */
+    public synchronized void committing() {
+        committing.putAll(current);
+        current = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Called once the commit is done, holding commitLock()
+     */
+    public synchronized void committed() {
+        committed.putAll(committing);
+        committing = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Called before a reopen: the writes the new reader sees are moved to
+     * previous, all of them for a reader opened from the writer, the
+     * committed ones otherwise. They are copied before their map is
+     * replaced, so that get() always finds them in one of the maps.
+     *
+     * @param nrt the reader is opened from the writer
+     */
+    public synchronized void reopening(boolean nrt) {
+        if (nrt) {
+            committed.putAll(committing);
+            committed.putAll(current);
+            previous.putAll(committed);
+            current = new ConcurrentHashMap<String, String>();
+            committing = new ConcurrentHashMap<String, String>();
+        } else {
+            previous.putAll(committed);
+        }
+        committed = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Called once the new reader is in use
+     */
+    public synchronized void reopened() {
+        generation++;
+        previous = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * @return the number of reopens done, to read before acquiring a reader
+     *         and compare after get()
+     */
+    public long generation() {
+        return generation;
+    }
+
+    public synchronized void clear() {
+        generation++;
+        current = new ConcurrentHashMap<String, String>();
+        committing = new ConcurrentHashMap<String, String>();
+        committed = new ConcurrentHashMap<String, String>();
+        previous = new ConcurrentHashMap<String, String>();
+    }
+}
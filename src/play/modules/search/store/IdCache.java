@@ -0,0 +1,117 @@
+package play.modules.search.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.util.ReaderUtil;
+
+import play.Play;
+
+/**
+ * Reads the _docID of a hit without decoding the stored fields of the
+ * document. The ids are kept per segment in Lucene's FieldCache, so a reopen
+ * only loads the ids of the new segments.
+ *
+ * @author jfp
+ */
+public class IdCache {
+    public static final String ID_FIELD = "_docID";
+
+    /**
+     * Loads _docID only, and stops reading the document there (it is the
+     * first field of every document)
+     */
+    public static final FieldSelector ID_SELECTOR = new FieldSelector() {
+        public FieldSelectorResult accept(String fieldName) {
+            return ID_FIELD.equals(fieldName) ? FieldSelectorResult.LOAD_AND_BREAK : FieldSelectorResult.NO_LOAD;
+        }
+    };
+
+    private final IndexReader[] subReaders;
+
+    private final int[] starts;
+
+    public IdCache(IndexReader reader) {
+        this(Collections.singletonList(reader));
+    }
+
+    /**
+     * Ids of the hits of searcher, an IndexSearcher or a ShardedSearcher
+     */
+    public IdCache(Searcher searcher) {
+        this(readersOf(searcher));
+    }
+
+    private IdCache(List<IndexReader> topReaders) {
+        List<IndexReader> readers = new ArrayList<IndexReader>();
+        for (IndexReader reader : topReaders) {
+            ReaderUtil.gatherSubReaders(readers, reader);
+        }
+        subReaders = readers.toArray(new IndexReader[readers.size()]);
+        starts = new int[subReaders.length];
+        int maxDoc = 0;
+        for (int i = 0; i < subReaders.length; i++) {
+            starts[i] = maxDoc;
+            maxDoc += subReaders[i].maxDoc();
+        }
+    }
+
+    /**
+     * @return the readers of searcher, in the order of its document numbers
+     */
+    private static List<IndexReader> readersOf(Searcher searcher) {
+        if (searcher instanceof IndexSearcher)
+            return Collections.singletonList(((IndexSearcher) searcher).getIndexReader());
+        List<IndexReader> readers = new ArrayList<IndexReader>();
+        for (IndexSearcher shard : ((ShardedSearcher) searcher).getShards()) {
+            readers.add(shard.getIndexReader());
+        }
+        return readers;
+    }
+
+    private static volatile boolean enabled = true;
+
+    /**
+     * Reads play.search.idCache, called by Search.init()
+     */
+    public static void configure() {
+        enabled = Boolean.parseBoolean(Play.configuration.getProperty("play.search.idCache", "true"));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Loads the ids of the segments not cached yet, called when a reader is
+     * opened so that queries never pay for it
+     */
+    public void warm() throws IOException {
+        for (IndexReader subReader : subReaders) {
+            FieldCache.DEFAULT.getStrings(subReader, ID_FIELD);
+        }
+    }
+
+    public String get(int doc) throws IOException {
+        int i = ReaderUtil.subIndex(doc, starts);
+        return FieldCache.DEFAULT.getStrings(subReaders[i], ID_FIELD)[doc - starts[i]];
+    }
+
+    /**
+     * Reads the id of a hit, from the cache when enabled or else by loading
+     * the _docID stored field only
+     */
+    public static String getId(Searcher searcher, IdCache cache, int doc) throws IOException {
+        if (cache != null)
+            return cache.get(doc);
+        return searcher.doc(doc, ID_SELECTOR).get(ID_FIELD);
+    }
+}
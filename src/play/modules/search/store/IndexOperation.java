@@ -0,0 +1,53 @@
+package play.modules.search.store;
+
+import org.apache.lucene.document.Document;
+
+import play.db.jpa.JPABase;
+
+/**
+ * A pending change on an index: the document to (re)index for an object id,
+ * or its removal when document is null. The document is built when the
+ * operation is created, while the object is still attached to its
+ * persistence context.
+ *
+ * @author jfp
+ */
+public class IndexOperation {
+    public final String index;
+
+    public final String id;
+
+    public final Document document;
+
+    public IndexOperation(String index, String id, Document document) {
+        this.index = index;
+        this.id = id;
+        this.document = document;
+    }
+
+    public boolean isDelete() {
+        return document == null;
+    }
+
+    /**
+     * @return the operation indexing object, null if object is not indexed
+     */
+    public static IndexOperation index(Object object, String index) throws Exception {
+        Document document = ConvertionUtils.toDocument(object);
+        if (document == null)
+            return null;
+        return new IndexOperation(index, ConvertionUtils.getIdValueFor((JPABase) object) + "", document);
+    }
+
+    /**
+     * @return the operation removing object from its index, null if object
+     *         is not indexed
+     */
+    public static IndexOperation unIndex(Object object) {
+        if (!(object instanceof JPABase))
+            return null;
+        if (!ClassMapping.of(object.getClass()).indexed)
+            return null;
+        return new IndexOperation(object.getClass().getName(), ConvertionUtils.getIdValueFor((JPABase) object) + "", null);
+    }
+}
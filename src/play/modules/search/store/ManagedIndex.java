@@ -5,4 +5,20 @@ public class ManagedIndex {
     public boolean optimized;
     public long documentCount;
     public long jpaCount;
+    /**
+     * Running or last rebuild, null if none since startup
+     */
+    public RebuildProgress rebuild;
+    /**
+     * Directory strategy: fs, mmap, nio, simple or ram
+     */
+    public String directory;
+    /**
+     * Bytes memory-mapped or held in memory by the directory
+     */
+    public long memoryBytes;
+    /**
+     * Number of shards, 1 if the index is not sharded
+     */
+    public int shards;
 }
@@ -0,0 +1,162 @@
+package play.modules.search.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+import play.Logger;
+import play.Play;
+import play.libs.Files;
+
+/**
+ * A store keeping every index in memory, selected with
+ * play.search.store=play.modules.search.store.MemoryStore. It behaves like
+ * FilesystemStore (rebuilds, optimize, console...) without any disk access,
+ * which suits tests and small reference data. The indexes are lost when the
+ * application stops, unless play.search.memory.snapshot is set: they are
+ * then copied to play.search.path on stop and loaded back on start.
+ *
+ * @author jfp
+ */
+public class MemoryStore extends FilesystemStore {
+    /**
+     * Current folder of the indexes that were rebuilt, the other ones are in
+     * their default folder
+     */
+    protected Map<String, File> folders = new ConcurrentHashMap<String, File>();
+
+    protected boolean snapshot;
+
+    /**
+     * Indexes deleted since start: their snapshot is not loaded again, and
+     * is deleted on stop unless they were written again
+     */
+    protected Set<String> deleted = Collections.synchronizedSet(new HashSet<String>());
+
+    public MemoryStore() {
+        directories = new DirectoryFactory() {
+            @Override
+            public String getStrategy(String name) {
+                return RAM;
+            }
+
+            @Override
+            protected Directory newRamDirectory(String name, File folder) throws IOException {
+                if (snapshot && !deleted.contains(name) && hasSnapshot(folder)) {
+                    Logger.trace("Loading index %s from its snapshot %s", name, folder);
+                    Directory saved = FSDirectory.open(folder);
+                    try {
+                        return new RAMDirectory(saved);
+                    } finally {
+                        saved.close();
+                    }
+                }
+                return new RAMDirectory();
+            }
+
+            @Override
+            public boolean exists(String name, File folder) {
+                return super.exists(name, folder) || (snapshot && !deleted.contains(name) && hasSnapshot(folder));
+            }
+        };
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        snapshot = Boolean.parseBoolean(Play.configuration.getProperty("play.search.memory.snapshot", "false"));
+        Logger.trace("In-memory indexes snapshot: " + snapshot);
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (snapshot) {
+            for (String name : new ArrayList<String>(indexWriters.keySet())) {
+                try {
+                    saveSnapshot(name);
+                } catch (Exception e) {
+                    Logger.error(e, "Could not save the snapshot of index %s", name);
+                }
+            }
+            for (String name : new ArrayList<String>(deleted)) {
+                if (!indexWriters.containsKey(name))
+                    Files.deleteDirectory(new File(DATA_PATH, name));
+            }
+        }
+        deleted.clear();
+        super.stop();
+    }
+
+    /**
+     * Commits an index and copies it to its default folder. The copy is
+     * made in a temporary folder first, so that a failed copy leaves the
+     * previous snapshot in place.
+     */
+    protected void saveSnapshot(String name) throws IOException {
+        commit(name);
+        File target = new File(DATA_PATH, name);
+        File tmp = new File(DATA_PATH, name + ".snapshot");
+        Files.deleteDirectory(tmp);
+        Directory copy = FSDirectory.open(tmp);
+        try {
+            Directory.copy(directories.open(name, getIndexFolder(name)), copy, false);
+        } finally {
+            copy.close();
+        }
+        Files.deleteDirectory(target);
+        if (!tmp.renameTo(target))
+            throw new IOException("Could not move " + tmp + " to " + target);
+        folders.remove(name);
+        Logger.trace("Index %s saved to %s", name, target);
+    }
+
+    protected boolean hasSnapshot(File folder) {
+        if (!folder.exists())
+            return false;
+        try {
+            Directory directory = FSDirectory.open(folder);
+            try {
+                return IndexReader.indexExists(directory);
+            } finally {
+                directory.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected File getIndexFolder(String name) {
+        File folder = folders.get(name);
+        return folder != null ? folder : new File(DATA_PATH, name);
+    }
+
+    @Override
+    protected void setIndexFolder(String name, File folder) throws IOException {
+        folders.put(name, folder);
+    }
+
+    @Override
+    protected void clearIndexFolder(String name) {
+        folders.remove(name);
+        deleted.add(name);
+    }
+
+    /**
+     * The snapshots are only written on stop
+     */
+    @Override
+    protected void deleteAllFolders() {
+        folders.clear();
+    }
+}
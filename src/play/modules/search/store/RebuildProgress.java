@@ -0,0 +1,85 @@
+package play.modules.search.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of an index rebuild, shown in the console
+ *
+ * @author jfp
+ */
+public class RebuildProgress {
+    public final String name;
+
+    /**
+     * Number of rows to index, as counted when the rebuild started
+     */
+    public final long total;
+
+    public final long startedAt = System.currentTimeMillis();
+
+    private final AtomicLong done = new AtomicLong();
+
+    private volatile long finishedAt = 0;
+
+    private volatile boolean failed = false;
+
+    public RebuildProgress(String name, long total) {
+        this.name = name;
+        this.total = total;
+    }
+
+    public void add(long rows) {
+        done.addAndGet(rows);
+    }
+
+    public void finish(boolean success) {
+        failed = !success;
+        finishedAt = System.currentTimeMillis();
+    }
+
+    public long getDone() {
+        return done.get();
+    }
+
+    public boolean isFinished() {
+        return finishedAt > 0;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return elapsed time in seconds
+     */
+    public long getElapsed() {
+        return ((isFinished() ? finishedAt : System.currentTimeMillis()) - startedAt) / 1000;
+    }
+
+    /**
+     * @return rows indexed per second
+     */
+    public long getRate() {
+        long elapsed = (isFinished() ? finishedAt : System.currentTimeMillis()) - startedAt;
+        return elapsed == 0 ? 0 : done.get() * 1000 / elapsed;
+    }
+
+    /**
+     * @return estimated seconds left, -1 if unknown
+     */
+    public long getEta() {
+        long rate = getRate();
+        if (isFinished())
+            return 0;
+        if (rate == 0)
+            return -1;
+        return Math.max(0, total - done.get()) / rate;
+    }
+
+    @Override
+    public String toString() {
+        if (isFinished())
+            return (failed ? "failed after " : "done: ") + getDone() + " rows in " + getElapsed() + "s (" + getRate() + " rows/s)";
+        return getDone() + "/" + total + " rows, " + getRate() + " rows/s, ETA " + (getEta() < 0 ? "?" : getEta() + "s");
+    }
+}
@@ -0,0 +1,180 @@
+package play.modules.search.store;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.AlreadyClosedException;
+
+import play.Logger;
+
+/**
+ * Hands out reference counted searchers on one index. Each acquire() must be
+ * paired with a release(): a searcher replaced by a reopen is closed only
+ * when its last user releases it, so a reopen never breaks a running query
+ * and queries never wait for a reopen.
+ *
+ * @author jfp
+ */
+public class SearcherManager {
+
+    private volatile IndexSearcher current;
+
+    private final Object reopenLock = new Object();
+
+    private final List<SortField> sortFields;
+
+    private final Executor warmer;
+
+    public SearcherManager(IndexReader reader) throws IOException {
+        this(reader, Collections.<SortField> emptyList());
+    }
+
+    /**
+     * @param sortFields the sorts whose field caches are loaded before each
+     *            searcher is published
+     */
+    public SearcherManager(IndexReader reader, List<SortField> sortFields) throws IOException {
+        this(reader, sortFields, null);
+    }
+
+    /**
+     * @param warmer if not null, the searchers of reopened readers are
+     *            published at once and their caches loaded by warmer, so that
+     *            the thread reopening (a write in synch mode) does not wait
+     *            for it. The first searcher is always warmed before use.
+     */
+    public SearcherManager(IndexReader reader, List<SortField> sortFields, Executor warmer) throws IOException {
+        this.sortFields = sortFields;
+        this.warmer = warmer;
+        current = newSearcher(reader);
+    }
+
+    protected IndexSearcher newSearcher(IndexReader reader) throws IOException {
+        warm(reader);
+        return open(reader);
+    }
+
+    private static IndexSearcher open(IndexReader reader) {
+        IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setDefaultFieldSortScoring(true, true);
+        return searcher;
+    }
+
+    /**
+     * Loads the per-segment caches of a new reader before it is published,
+     * so that queries do not pay for it
+     */
+    protected void warm(IndexReader reader) throws IOException {
+        if (IdCache.isEnabled())
+            new IdCache(reader).warm();
+        if (SortCache.isEnabled())
+            SortCache.warm(reader, sortFields);
+    }
+
+    /**
+     * Warms reader on the warmer, holding a reference to it meanwhile. The
+     * queries that come first load the caches they need themselves.
+     */
+    private void warmLater(final IndexReader reader) {
+        reader.incRef();
+        try {
+            warmer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        warm(reader);
+                    } catch (AlreadyClosedException e) {
+                        // replaced and released meanwhile
+                    } catch (Exception e) {
+                        Logger.warn(e, "Could not warm the caches of a reopened index");
+                    } finally {
+                        decRef(reader);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the store is stopping
+            decRef(reader);
+        }
+    }
+
+    private static void decRef(IndexReader reader) {
+        try {
+            reader.decRef();
+        } catch (IOException e) {
+            Logger.warn(e, "Could not release an index reader");
+        }
+    }
+
+    /**
+     * @return the current searcher, which must be given back with release()
+     */
+    public IndexSearcher acquire() {
+        while (true) {
+            IndexSearcher searcher = current;
+            if (searcher == null)
+                throw new AlreadyClosedException("this SearcherManager is closed");
+            try {
+                searcher.getIndexReader().incRef();
+                return searcher;
+            } catch (AlreadyClosedException e) {
+                // swapped and closed between the read and the incRef
+                if (searcher == current)
+                    throw e;
+            }
+        }
+    }
+
+    public static void release(IndexSearcher searcher) throws IOException {
+        if (searcher != null)
+            searcher.getIndexReader().decRef();
+    }
+
+    /**
+     * Reopens the reader if the index changed. Only new segments are loaded,
+     * the previous searcher stays usable by the queries still holding it.
+     *
+     * @return true if a new searcher was published
+     */
+    public boolean maybeReopen() throws IOException {
+        synchronized (reopenLock) {
+            IndexSearcher searcher = acquire();
+            try {
+                IndexReader reader = searcher.getIndexReader();
+                IndexReader reopened = reader.reopen();
+                if (reopened == reader)
+                    return false;
+                if (warmer == null) {
+                    swap(newSearcher(reopened));
+                } else {
+                    swap(open(reopened));
+                    warmLater(reopened);
+                }
+                return true;
+            } finally {
+                release(searcher);
+            }
+        }
+    }
+
+    /**
+     * Stops handing out searchers. The last one is closed once released by
+     * its current users.
+     */
+    public void close() throws IOException {
+        synchronized (reopenLock) {
+            swap(null);
+        }
+    }
+
+    private void swap(IndexSearcher searcher) throws IOException {
+        IndexSearcher old = current;
+        current = searcher;
+        release(old);
+    }
+}
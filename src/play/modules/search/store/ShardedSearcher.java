@@ -0,0 +1,209 @@
+package play.modules.search.store;
+
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Searches the shards of an index in parallel and merges their top hits.
+ * Scores use the document frequencies of all the shards, so they are the
+ * ones of an unsharded index. The shards are searched on the executor
+ * shared by all the sharded searchers, the first one on the calling thread.
+ * Holds no resource of its own: one instance is cached as long as the
+ * searchers of the shards do not change, and is simply dropped after.
+ *
+ * @author jfp
+ */
+public class ShardedSearcher extends MultiSearcher {
+    final IndexSearcher[] shards;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor searches the shards, null to search them one after the
+     *            other on the calling thread
+     */
+    ShardedSearcher(IndexSearcher[] shards, ExecutorService executor) throws IOException {
+        super(shards);
+        this.shards = shards;
+        this.executor = executor;
+    }
+
+    public IndexSearcher[] getShards() {
+        return shards;
+    }
+
+    /**
+     * @return true if this searcher searches exactly these shard searchers
+     */
+    boolean searches(IndexSearcher[] searchers) {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] != searchers[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TopDocs search(final Weight weight, final Filter filter, final int nDocs) throws IOException {
+        List<TopDocs> results = searchShards(new ShardSearch<TopDocs>() {
+            public TopDocs search(IndexSearcher shard) throws IOException {
+                return shard.search(weight, filter, nDocs);
+            }
+        });
+        List<ScoreDoc> hits = new ArrayList<ScoreDoc>();
+        int totalHits = 0;
+        float maxScore = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < results.size(); i++) {
+            TopDocs docs = results.get(i);
+            totalHits += docs.totalHits;
+            maxScore = Math.max(maxScore, docs.getMaxScore());
+            for (ScoreDoc hit : docs.scoreDocs) {
+                hit.doc += getStarts()[i];
+                hits.add(hit);
+            }
+        }
+        Collections.sort(hits, new Comparator<ScoreDoc>() {
+            public int compare(ScoreDoc a, ScoreDoc b) {
+                if (a.score != b.score)
+                    return a.score > b.score ? -1 : 1;
+                return a.doc < b.doc ? -1 : (a.doc == b.doc ? 0 : 1);
+            }
+        });
+        return new TopDocs(totalHits, top(hits, nDocs).toArray(new ScoreDoc[0]), maxScore);
+    }
+
+    @Override
+    public TopFieldDocs search(final Weight weight, final Filter filter, final int n, final Sort sort) throws IOException {
+        List<TopFieldDocs> results = searchShards(new ShardSearch<TopFieldDocs>() {
+            public TopFieldDocs search(IndexSearcher shard) throws IOException {
+                return shard.search(weight, filter, n, sort);
+            }
+        });
+        final SortField[] fields = results.get(0).fields;
+        final Collator[] collators = new Collator[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getLocale() != null)
+                collators[i] = Collator.getInstance(fields[i].getLocale());
+        }
+        List<ScoreDoc> hits = new ArrayList<ScoreDoc>();
+        int totalHits = 0;
+        float maxScore = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < results.size(); i++) {
+            TopFieldDocs docs = results.get(i);
+            totalHits += docs.totalHits;
+            maxScore = Math.max(maxScore, docs.getMaxScore());
+            for (ScoreDoc hit : docs.scoreDocs) {
+                hit.doc += getStarts()[i];
+                // doc order compares the ids in the whole index
+                for (int j = 0; j < fields.length; j++) {
+                    if (fields[j].getType() == SortField.DOC)
+                        ((FieldDoc) hit).fields[j] = Integer.valueOf(hit.doc);
+                }
+                hits.add(hit);
+            }
+        }
+        // same order as the merge of Lucene's MultiSearcher
+        Collections.sort(hits, new Comparator<ScoreDoc>() {
+            @SuppressWarnings("unchecked")
+            public int compare(ScoreDoc a, ScoreDoc b) {
+                Comparable[] x = ((FieldDoc) a).fields;
+                Comparable[] y = ((FieldDoc) b).fields;
+                int c = 0;
+                for (int i = 0; i < fields.length && c == 0; i++) {
+                    int type = fields[i].getType();
+                    if (type == SortField.STRING) {
+                        String s1 = (String) x[i];
+                        String s2 = (String) y[i];
+                        if (s1 == null)
+                            c = s2 == null ? 0 : -1;
+                        else if (s2 == null)
+                            c = 1;
+                        else
+                            c = collators[i] == null ? s1.compareTo(s2) : collators[i].compare(s1, s2);
+                    } else {
+                        c = x[i].compareTo(y[i]);
+                        if (type == SortField.SCORE)
+                            c = -c;
+                    }
+                    if (fields[i].getReverse())
+                        c = -c;
+                }
+                if (c == 0)
+                    return a.doc < b.doc ? -1 : (a.doc == b.doc ? 0 : 1);
+                return c;
+            }
+        });
+        return new TopFieldDocs(totalHits, top(hits, n).toArray(new ScoreDoc[0]), fields, maxScore);
+    }
+
+    private static List<ScoreDoc> top(List<ScoreDoc> hits, int n) {
+        return hits.size() > n ? hits.subList(0, n) : hits;
+    }
+
+    private interface ShardSearch<T> {
+        T search(IndexSearcher shard) throws IOException;
+    }
+
+    /**
+     * @return the results of each shard, in the order of the shards
+     */
+    private <T> List<T> searchShards(final ShardSearch<T> search) throws IOException {
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        try {
+            for (int i = 1; i < shards.length && executor != null; i++) {
+                final IndexSearcher shard = shards[i];
+                futures.add(executor.submit(new Callable<T>() {
+                    public T call() throws IOException {
+                        return search.search(shard);
+                    }
+                }));
+            }
+        } catch (RejectedExecutionException e) {
+            // stopping: the remaining shards are searched here
+        }
+        List<T> results = new ArrayList<T>();
+        results.add(search.search(shards[0]));
+        for (int i = 1; i < shards.length; i++) {
+            if (i > futures.size()) {
+                results.add(search.search(shards[i]));
+                continue;
+            }
+            try {
+                results.add(futures.get(i - 1).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ThreadInterruptedException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new IOException(e.getCause().toString());
+            }
+        }
+        return results;
+    }
+}
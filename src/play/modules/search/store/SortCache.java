@@ -0,0 +1,137 @@
+package play.modules.search.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.FieldCache.CacheEntry;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ReaderUtil;
+
+import play.Play;
+
+/**
+ * Loads the field caches used to sort on the fields declared
+ * <code>@Field(sortable=true)</code>, one segment at a time, when a reader is
+ * opened: the first orderBy() on a large index then does not have to read
+ * every term of the field while holding up the query. Strings are cached as
+ * term ordinals (StringIndex), numbers as arrays of their values. Disable
+ * with play.search.sortCache.warm=false.
+ *
+ * @author jfp
+ */
+public class SortCache {
+
+    private static volatile boolean enabled = true;
+
+    /**
+     * Reads play.search.sortCache.warm, called by Search.init()
+     */
+    public static void configure() {
+        enabled = Boolean.parseBoolean(Play.configuration.getProperty("play.search.sortCache.warm", "true"));
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Loads the sort caches of each segment of reader not cached yet
+     */
+    public static void warm(IndexReader reader, List<SortField> sortFields) throws IOException {
+        if (sortFields.isEmpty())
+            return;
+        List<IndexReader> subReaders = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders(subReaders, reader);
+        for (IndexReader subReader : subReaders) {
+            for (SortField sortField : sortFields) {
+                warm(subReader, sortField);
+            }
+        }
+    }
+
+    private static void warm(IndexReader reader, SortField sortField) throws IOException {
+        String field = sortField.getField();
+        FieldCache.Parser parser = sortField.getParser();
+        switch (sortField.getType()) {
+        case SortField.INT:
+            if (parser != null)
+                FieldCache.DEFAULT.getInts(reader, field, (FieldCache.IntParser) parser);
+            else
+                FieldCache.DEFAULT.getInts(reader, field);
+            break;
+        case SortField.LONG:
+            if (parser != null)
+                FieldCache.DEFAULT.getLongs(reader, field, (FieldCache.LongParser) parser);
+            else
+                FieldCache.DEFAULT.getLongs(reader, field);
+            break;
+        case SortField.FLOAT:
+            if (parser != null)
+                FieldCache.DEFAULT.getFloats(reader, field, (FieldCache.FloatParser) parser);
+            else
+                FieldCache.DEFAULT.getFloats(reader, field);
+            break;
+        case SortField.DOUBLE:
+            if (parser != null)
+                FieldCache.DEFAULT.getDoubles(reader, field, (FieldCache.DoubleParser) parser);
+            else
+                FieldCache.DEFAULT.getDoubles(reader, field);
+            break;
+        case SortField.SHORT:
+            FieldCache.DEFAULT.getShorts(reader, field);
+            break;
+        case SortField.BYTE:
+            FieldCache.DEFAULT.getBytes(reader, field);
+            break;
+        case SortField.STRING:
+            FieldCache.DEFAULT.getStringIndex(reader, field);
+            break;
+        default:
+            // scores and doc ids have no cache
+        }
+    }
+
+    /**
+     * Memory held by the field caches of one field
+     */
+    public static class Stats {
+        public String field;
+
+        /**
+         * Number of cached segments
+         */
+        public int entries;
+
+        public long bytes;
+
+        public double getMegabytes() {
+            return bytes / (1024.0 * 1024.0);
+        }
+    }
+
+    /**
+     * @return the field caches currently loaded, by field name, including
+     *         those of the id cache and of the readers not yet released
+     */
+    public static List<Stats> getStats() {
+        Map<String, Stats> stats = new TreeMap<String, Stats>();
+        RamUsageEstimator estimator = new RamUsageEstimator(false);
+        for (CacheEntry entry : FieldCache.DEFAULT.getCacheEntries()) {
+            Stats field = stats.get(entry.getFieldName());
+            if (field == null) {
+                field = new Stats();
+                field.field = entry.getFieldName();
+                stats.put(field.field, field);
+            }
+            field.entries++;
+            field.bytes += estimator.estimateRamUsage(entry.getValue());
+        }
+        return new ArrayList<Stats>(stats.values());
+    }
+}
@@ -3,6 +3,7 @@ package play.modules.search.store;
 import java.util.List;
 
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Searcher;
 
 
 /**
@@ -14,13 +15,45 @@ public interface Store {
     public void stop () throws Exception;
     public void unIndex(Object object);
     public void index(Object object, String index);
+    /**
+     * Applies a batch of operations on one index, with a single commit and
+     * reader refresh for the whole batch
+     */
+    public void apply(String index, List<IndexOperation> operations);
     public void rebuildAllIndexes() throws Exception;
+    /**
+     * Gets the current searcher of an index without holding it: it is
+     * closed by the next reopen, which any write may trigger, so it must not
+     * be used across reopens nor kept after the call that got it.
+     *
+     * @deprecated the searcher may be closed by a concurrent reopen, use
+     *             acquireIndexSearcher and releaseIndexSearcher
+     */
+    @Deprecated
     public IndexSearcher getIndexSearcher (String searcherName);
+    /**
+     * Gets a searcher that stays open until given back with
+     * releaseIndexSearcher, even if the index is reopened meanwhile
+     */
+    public IndexSearcher acquireIndexSearcher (String searcherName);
+    public void releaseIndexSearcher (String searcherName, IndexSearcher searcher);
+    /**
+     * Gets a searcher on an index, searching all its shards in parallel if
+     * it is sharded. It must be given back with releaseSearcher.
+     */
+    public Searcher acquireSearcher (String searcherName);
+    public void releaseSearcher (String searcherName, Searcher searcher);
     public List<ManagedIndex> listIndexes();
     public boolean hasIndex (String name);
     public void delete (String name);
     public void deleteAll ();
     public void optimize (String name);
     public void rebuild (String name);
+    /**
+     * Reindexes the objects changed since the last reindex, according to the
+     * versionField of their @Indexed annotation, and unindexes the deleted
+     * ones
+     */
+    public void reindexChanged (String name);
     public void reopen (String name);
 }